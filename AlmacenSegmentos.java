@@ -0,0 +1,93 @@
+package cc.carretera;
+
+/**
+ * Estado de los segmentos de una carretera que usa CarreteraMonitor: que
+ * coche ocupa cada carril, la cola FIFO de los coches que esperan carril en
+ * cada segmento y que segmentos estan sucios (han liberado un carril con
+ * coches esperando).
+ *
+ * Las implementaciones no son seguras para hilos: quien las usa debe tener
+ * tomado su cerrojo. Los segmentos y carriles se numeran desde 0.
+ *
+ * Ver Segmentos (por trozos en el heap) y SegmentosDirectos (fuera del
+ * heap).
+ */
+public interface AlmacenSegmentos {
+  /**
+   * Devuelve el numero de carriles libres del segmento.
+   */
+  int libres(int segmento);
+
+  /**
+   * Ocupa con el coche el carril libre de menor numero del segmento.
+   *
+   * @return el carril ocupado o -1 si el segmento esta lleno
+   */
+  int ocupar(int segmento, int coche);
+
+  /**
+   * Libera un carril ocupado.
+   */
+  void liberar(int segmento, int carril);
+
+  /**
+   * Devuelve el coche que ocupa el carril o -1 si esta libre.
+   */
+  int coche(int segmento, int carril);
+
+  /**
+   * Devuelve la cola de espera del segmento, o null si no tiene.
+   */
+  ColaEnteros espera(int segmento);
+
+  /**
+   * Devuelve si hay algun coche esperando carril en el segmento.
+   */
+  default boolean hayEspera(int segmento) {
+    ColaEnteros cola = espera(segmento);
+    return cola != null && !cola.isEmpty();
+  }
+
+  /**
+   * Pone el coche al final de la cola de espera del segmento, creandola si
+   * no existe.
+   *
+   * @return coches que ya esperaban en el segmento
+   */
+  int esperar(int segmento, int coche);
+
+  /**
+   * Quita la cola de espera del segmento si esta vacia. Se llama despues
+   * de sacar coches de ella.
+   */
+  void podarEspera(int segmento);
+
+  /**
+   * Marca el segmento como sucio.
+   *
+   * @return false si ya estaba sucio
+   */
+  boolean ensuciar(int segmento);
+
+  /**
+   * Devuelve si el segmento esta sucio.
+   */
+  boolean sucio(int segmento);
+
+  /**
+   * Quita la marca de sucio del segmento.
+   */
+  void limpiar(int segmento);
+
+  /**
+   * Devuelve la posicion de un carril ocupado.
+   */
+  Pos pos(int segmento, int carril);
+
+  /**
+   * Como pos(int, int) para una posicion empaquetada (ver Pos).
+   */
+  default Pos pos(long posicion) {
+    return pos(Pos.segmento(posicion) - 1, Pos.carril(posicion) - 1);
+  }
+}
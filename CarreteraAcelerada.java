@@ -0,0 +1,48 @@
+package cc.carretera;
+
+/**
+ * Carretera que puede avanzar varios ticks de una vez, en una sola entrada
+ * en el monitor o una sola peticion al servidor.
+ *
+ * La mayoria de los ticks no cambian nada observable: solo acercan a los
+ * coches al final de su segmento. Con avanzarHastaSiguienteEvento un reloj
+ * en tiempo comprimido (ver Reloj) salta directamente al siguiente tick en
+ * el que algun coche termina su segmento, sin cambiar lo que ocurre en la
+ * carretera siempre que no entren coches nuevos durante el salto.
+ */
+public interface CarreteraAcelerada extends Carretera {
+  /**
+   * Aplica n ticks de una vez. Los coches que terminan su segmento en un
+   * tick intermedio continuan al final, como si los n ticks hubieran pasado
+   * sin que ningun coche pudiera actuar entre medias.
+   *
+   * @param n numero de ticks, n >= 0
+   */
+  default void tick(int n) {
+    for (int i = 0; i < n; i++)
+      tick();
+  }
+
+  /**
+   * Si todos los coches de la carretera estan bloqueados, circulando o
+   * esperando carril, avanza hasta el siguiente tick en que alguno termina
+   * su segmento. Si algun coche aun no ha vuelto a bloquearse (p.ej. acaba
+   * de terminar su segmento y todavia no ha llamado a avanzar) no hace
+   * nada, porque saltar el tiempo le haria perder ticks.
+   *
+   * @return ticks aplicados, 0 si no se ha aplicado ninguno porque algun
+   *   coche no esta bloqueado o ninguno esta circulando
+   */
+  int avanzarHastaSiguienteEvento();
+
+  /**
+   * Fija la accion que se ejecuta cada vez que pasan a estar bloqueados
+   * todos los coches de la carretera, que es cuando
+   * avanzarHastaSiguienteEvento puede saltar. Se ejecuta en el hilo de la
+   * carretera que atiende la operacion que bloquea al ultimo coche, asi que
+   * no debe bloquearse.
+   *
+   * @param aviso la accion, o null para no avisar
+   */
+  void alBloquearse(Runnable aviso);
+}
@@ -0,0 +1,66 @@
+package cc.carretera;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Carretera con operaciones que no bloquean: en lugar de esperar, cada
+ * operacion devuelve un CompletableFuture que se completa cuando la
+ * operacion bloqueante habria vuelto. Asi un ejecutor con unos pocos hilos
+ * puede llevar el protocolo de muchos coches encadenando los futuros, sin
+ * un hilo bloqueado por coche.
+ *
+ * Las esperas no envuelven a las operaciones bloqueantes: el futuro se
+ * guarda en las mismas estructuras de espera de la implementacion y se
+ * completa en el ejecutor (ver ejecutor), nunca con el cerrojo tomado ni
+ * en el hilo del servidor, de forma que las continuaciones de los coches
+ * pueden volver a usar la carretera. Las operaciones que no tienen que
+ * esperar devuelven un futuro ya completado.
+ *
+ * Como en las operaciones bloqueantes, un coche solo puede tener una
+ * operacion pendiente a la vez: la siguiente se pide cuando se completa
+ * el futuro de la anterior.
+ */
+public interface CarreteraAsincrona extends Carretera {
+  /**
+   * Como entrar(String, int) sin bloquear.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   *
+   * @return futuro con la posición que ocupa el coche, ver clase Pos
+   */
+  CompletableFuture<Pos> entrarAsync(String id, int tks);
+
+  /**
+   * Como avanzar(String, int) sin bloquear.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   *
+   * @return futuro con la posición que ocupa el coche, ver clase Pos
+   */
+  CompletableFuture<Pos> avanzarAsync(String id, int tks);
+
+  /**
+   * Como circulando(String) sin bloquear: el futuro se completa cuando el
+   * coche llega al final de su segmento.
+   *
+   * @param id identificador del coche
+   */
+  CompletableFuture<Void> circulandoAsync(String id);
+
+  /**
+   * Como salir(String) sin bloquear.
+   *
+   * @param id identificador del coche
+   */
+  CompletableFuture<Void> salirAsync(String id);
+
+  /**
+   * Fija el ejecutor en el que se completan los futuros que han tenido
+   * que esperar, y en el que se ejecutan por tanto las continuaciones que
+   * no son async. Por defecto es ForkJoinPool.commonPool().
+   */
+  void ejecutor(Executor ejecutor);
+}
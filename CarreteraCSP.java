@@ -1,105 +1,136 @@
 package cc.carretera;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 
 import org.jcsp.lang.*;
-
-public class CarreteraCSP implements Carretera, CSProcess {
-  // Ej. private Any2One chOp;
-  private Any2OneChannel chAvanzar;
-  private Any2OneChannel chEntrar;
-  private Any2OneChannel chSalir;
-  private Any2OneChannel chCirculando;
-  private Any2OneChannel chTick;
-
-  // Clase interna que representa un coche
-  // Cada coche tiene un identificador y un número de tks (ticks)
-  class Car {
-    String id;
-    int tks;
-
-    Car(String id, int tks) {
-      this.id = id;
-      this.tks = tks;
-    }
-  }
-
-  public class PetAvanzar {
-    String car;
+import org.jcsp.util.InfiniteBuffer;
+
+public class CarreteraCSP implements CarreteraIndexada, CarreteraAcelerada, CarreteraAsincrona, CarreteraObservable, CarreteraVigilada, CSProcess {
+  // Codigos de operacion de las peticiones, que son tambien el indice de su
+  // canal y de su guarda en el servidor
+  static final int ENTRAR = 0;
+  static final int AVANZAR = 1;
+  static final int SALIR = 2;
+  static final int CIRCULANDO = 3;
+  static final int TICK = 4;
+  // Indice del canal de las peticiones asincronas de cualquier operacion
+  static final int ASINCRONAS = 5;
+  // tks de una peticion de TICK que pide avanzar hasta el siguiente evento
+  static final int HASTA_SIGUIENTE = 0;
+
+  // Canal de peticiones de cada operacion, y el de las asincronas
+  private final Any2OneChannel[] canales = new Any2OneChannel[6];
+
+  // Registro de los coches: da a cada identificador el indice con el que
+  // viajan las peticiones, de forma que el servidor guarda el estado de los
+  // coches en arrays y no en mapas. Lo usan los clientes, no el servidor
+  private final Registro registro = new Registro();
+
+  // Sobre de una peticion: el servidor no distingue las operaciones por la
+  // clase sino por op. Cada hilo cliente tiene un unico sobre (y un unico
+  // canal de respuesta) que reutiliza en todas sus peticiones, ya que un
+  // hilo no puede tener mas de una peticion pendiente a la vez. Las
+  // peticiones asincronas no tienen canal sino un futuro, y cada una tiene
+  // su propio sobre
+  public static class Peticion {
+    int op;
+    int coche;
     int tks;
-    // Canal de respuesta para enviar la posición del coche
-    One2OneChannel respuesta;
-
-    PetAvanzar(String car, int tks) {
-      this.car = car;
-      this.tks = tks;
-      this.respuesta = Channel.one2one();
+    // Canal de respuesta: la posición del coche en entrar y avanzar, null en
+    // el resto
+    final One2OneChannel respuesta;
+    // Futuro que completa la respuesta si la peticion es asincrona
+    final CompletableFuture<Object> futuro;
+
+    Peticion() {
+      respuesta = Channel.one2one();
+      futuro = null;
     }
-  }
 
-  public class PetEntrar {
-    String car;
-    int tks;
-    // Canal de respuesta para enviar la posición del coche
-    One2OneChannel respuesta;
-
-    PetEntrar(String car, int tks) {
-      this.car = car;
+    Peticion(int op, int coche, int tks) {
+      this.op = op;
+      this.coche = coche;
       this.tks = tks;
-      this.respuesta = Channel.one2one();
+      respuesta = null;
+      futuro = new CompletableFuture<Object>();
     }
-  }
-
-  public class PetSalir {
-    String car;
-    // Canal de respuesta para confirmar la salida del coche
-    One2OneChannel respuesta;
 
-    PetSalir(String car) {
-      this.car = car;
-      this.respuesta = Channel.one2one();
+    public String toString() {
+      return "Peticion(" + op + "," + coche + "," + tks + ")";
     }
   }
 
-  public class PetCirculando {
-    String car;
-    // Canal de respuesta para confirmar que el coche está circulando
-    One2OneChannel respuesta;
+  private static final ThreadLocal<Peticion> sobre = ThreadLocal.withInitial(Peticion::new);
 
-    PetCirculando(String car) {
-      this.car = car;
-      this.respuesta = Channel.one2one();
+  /**
+   * CarreteraCSP con el servidor por lotes, para poder elegirla por nombre
+   * en Carreteras.
+   */
+  public static class Lotes extends CarreteraCSP {
+    public Lotes(int segmentos, int carriles) {
+      super(segmentos, carriles, true);
     }
   }
 
-  public class PetTick {
-    // Canal de respuesta para confirmar el tick
-    One2OneChannel respuesta;
-
-    PetTick() {
-      this.respuesta = Channel.one2one();
-    }
-  }
+  // Numero maximo de peticiones de un lote, para que el desbloqueo de las
+  // pendientes no se retrase indefinidamente si no dejan de llegar
+  static final int MAX_LOTE = 4096;
+
+  // Futuros de las peticiones asincronas respondidas, cada uno seguido de
+  // su valor. Solo los toca el servidor, que los completa en el ejecutor
+  // al final de cada vuelta
+  private ArrayList<Object> listos = new ArrayList<Object>();
+  private volatile Executor ejecutor = ForkJoinPool.commonPool();
+  // Publicador de los cambios de la carretera, al que publica el servidor
+  private final DifusorEventos difusor = new DifusorEventos();
+  // Copia de presentes del servidor que se lee sin peticion (ver presentes())
+  // y accion que se ejecuta al entrar un coche con la carretera vacia
+  private volatile int presentes;
+  private volatile Runnable aviso;
+  // Accion que se ejecuta cuando todos los coches quedan bloqueados (ver
+  // alBloquearse) y si lo estaban al final de la ultima vuelta
+  private volatile Runnable avisoBloqueo;
+  private boolean todosBloqueados;
 
   // Configuración de la carretera
   private final int segmentos;
   private final int carriles;
+  // El servidor atiende por lotes todas las peticiones que estan esperando
+  private final boolean lotes;
 
+  /**
+   * Crea la carretera y arranca su servidor. El servidor atiende por lotes
+   * si la propiedad carretera.csp.lotes es true.
+   */
   public CarreteraCSP(int segmentos, int carriles) {
+    this(segmentos, carriles, Boolean.getBoolean("carretera.csp.lotes"));
+  }
+
+  /**
+   * Crea la carretera y arranca su servidor.
+   *
+   * @param lotes si es true, cada vez que el servidor despierta atiende
+   *   todas las peticiones que estan esperando y despues desbloquea una
+   *   sola vez las pendientes; si es false atiende una peticion cada vez
+   */
+  public CarreteraCSP(int segmentos, int carriles, boolean lotes) {
     this.segmentos = segmentos;
     this.carriles = carriles;
+    this.lotes = lotes;
 
     /* Canales de comunicacion para las distintas peticiones */
-    chAvanzar = Channel.any2one();
-    chEntrar = Channel.any2one();
-    chSalir = Channel.any2one();
-    chCirculando = Channel.any2one();
-    chTick = Channel.any2one();
+    for (int op = 0; op < canales.length; op++)
+      canales[op] = Channel.any2one();
+    // Las peticiones asincronas no esperan a que el servidor las lea
+    canales[ASINCRONAS] = Channel.any2one(new InfiniteBuffer());
 
     // Puesta en marcha del servidor: alternativa sucia (desde el
     // punto de vista de CSP) a Parallel que nos ofrece JCSP para
@@ -107,76 +138,219 @@ public class CarreteraCSP implements Carretera, CSProcess {
     new ProcessManager(this).start();
   }
 
+  public int registrar(String id) {
+    return registro.registrar(id);
+  }
+
+  public void desregistrar(int coche) {
+    registro.liberar(coche);
+  }
+
+  // Adaptadores de las operaciones con identificador: entrar registra el
+  // coche y salir lo da de baja
   public Pos entrar(String car, int tks) {
-    PetEntrar peticion = new PetEntrar(car, tks);
-    // Envio de petición al servidor
-    chEntrar.out().write(peticion);
-    // Espera a recibir la respuesta del servidor
-    Pos posicion = (Pos) peticion.respuesta.in().read();
-    return posicion;
+    return entrar(registrar(car), tks);
   }
 
   public Pos avanzar(String car, int tks) {
-    PetAvanzar peticion = new PetAvanzar(car, tks);
-    // mensaje al server para que ejecute avanzar
-    chAvanzar.out().write(peticion);
-    // Espera a recibir la respuesta del servidor
-    Pos posicion = (Pos) peticion.respuesta.in().read();
-    return posicion;
+    return avanzar(registro.buscar(car), tks);
   }
 
   public void salir(String car) {
-    PetSalir peticion = new PetSalir(car);
-    // mensaje al server para que ejecute salir
-    chSalir.out().write(peticion);
-    // Espera a recibir la respuesta del servidor
-    peticion.respuesta.in().read();
+    int coche = registro.buscar(car);
+    salir(coche);
+    desregistrar(coche);
   }
 
   public void circulando(String car) {
-    PetCirculando peticion = new PetCirculando(car);
-    // mensaje al server para que ejecute circulando
-    chCirculando.out().write(peticion);
-    // Espera a recibir la respuesta del servidor
-    peticion.respuesta.in().read();
+    circulando(registro.buscar(car));
+  }
+
+  // Envia la peticion al servidor en el sobre del hilo y espera la respuesta
+  private Object pedir(int op, int coche, int tks) {
+    Peticion peticion = sobre.get();
+    peticion.op = op;
+    peticion.coche = coche;
+    peticion.tks = tks;
+    canales[op].out().write(peticion);
+    return peticion.respuesta.in().read();
+  }
+
+  // Envia una peticion asincrona en un sobre nuevo, sin esperar a que el
+  // servidor la lea
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<T> pedirAsync(int op, int coche, int tks) {
+    Peticion peticion = new Peticion(op, coche, tks);
+    canales[ASINCRONAS].out().write(peticion);
+    return (CompletableFuture<T>) (CompletableFuture<?>) peticion.futuro;
+  }
+
+  public CompletableFuture<Pos> entrarAsync(String car, int tks) {
+    return pedirAsync(ENTRAR, registrar(car), tks);
+  }
+
+  public CompletableFuture<Pos> avanzarAsync(String car, int tks) {
+    return pedirAsync(AVANZAR, registro.buscar(car), tks);
+  }
+
+  public CompletableFuture<Void> circulandoAsync(String car) {
+    return pedirAsync(CIRCULANDO, registro.buscar(car), 0);
+  }
+
+  public CompletableFuture<Void> salirAsync(String car) {
+    int coche = registro.buscar(car);
+    return this.<Void>pedirAsync(SALIR, coche, 0).thenRun(() -> desregistrar(coche));
+  }
+
+  public void ejecutor(Executor ejecutor) {
+    this.ejecutor = ejecutor;
+  }
+
+  public DifusorEventos eventos() {
+    return difusor;
+  }
+
+  // Responde a una peticion por su canal, o si es asincrona apunta su futuro
+  // para completarlo fuera del servidor
+  private void responder(Peticion peticion, Object valor) {
+    if (peticion.futuro == null) {
+      peticion.respuesta.out().write(valor);
+    } else {
+      listos.add(peticion.futuro);
+      listos.add(valor);
+    }
+  }
+
+  // Completa en el ejecutor los futuros de las peticiones asincronas
+  // respondidas en esta vuelta del servidor
+  @SuppressWarnings("unchecked")
+  private void completar() {
+    if (listos.isEmpty())
+      return;
+    ArrayList<Object> completar = listos;
+    listos = new ArrayList<Object>();
+    ejecutor.execute(() -> {
+        for (int i = 0; i < completar.size(); i += 2)
+          ((CompletableFuture<Object>) completar.get(i)).complete(completar.get(i + 1));
+      });
+  }
+
+  public Pos entrar(int coche, int tks) {
+    return (Pos) pedir(ENTRAR, coche, tks);
+  }
+
+  public Pos avanzar(int coche, int tks) {
+    return (Pos) pedir(AVANZAR, coche, tks);
+  }
+
+  public void salir(int coche) {
+    pedir(SALIR, coche, 0);
+  }
+
+  public void circulando(int coche) {
+    pedir(CIRCULANDO, coche, 0);
   }
 
   public void tick() {
-    PetTick peticion = new PetTick();
-    // mensaje al server para que ejecute tick
-    chTick.out().write(peticion);
-    // Espera a recibir la respuesta del servidor
-    peticion.respuesta.in().read();
+    pedir(TICK, -1, 1);
+  }
+
+  public void tick(int n) {
+    if (n > 0)
+      pedir(TICK, -1, n);
+  }
+
+  public int avanzarHastaSiguienteEvento() {
+    return (Integer) pedir(TICK, -1, HASTA_SIGUIENTE);
+  }
+
+  public int presentes() {
+    return presentes;
+  }
+
+  public void alOcupar(Runnable aviso) {
+    this.aviso = aviso;
+  }
+
+  public void alBloquearse(Runnable aviso) {
+    this.avisoBloqueo = aviso;
   }
 
   public class Carretera {
-    Car[][] carretera;
+    // Cada carril guarda el indice del coche que lo ocupa mas uno (0 si esta libre)
+    int[][] carretera;
     int[] carrilesLibres;
-    HashMap<String, Pos> posiciones = new HashMap<String, Pos>();;
+    // Mapa de bits de carriles ocupados para encontrar el primer carril libre
+    Ocupacion ocupacion;
+    // Un unico Pos por segmento y carril que se comparte en las respuestas
+    Posiciones posiciones;
+    // Estado de cada coche indexado por su indice: segmento y carril (desde 0,
+    // segmento -1 si no esta en la carretera) y tick absoluto (plazo) en el
+    // que llega al final de su segmento
+    int[] segmento = new int[0];
+    int[] carril = new int[0];
+    long[] plazo = new long[0];
+    // Peticion de circulando pendiente de cada coche, null si no tiene
+    Peticion[] peticiones_circulando = new Peticion[0];
+    // Rueda temporal con los coches que aun no han llegado al final de su
+    // segmento: tick solo toca los coches que terminan en ese tick
+    RuedaTemporal rueda = new RuedaTemporal(256);
+    // Coches con una peticion de circulando pendiente que ya han terminado
+    ColaEnteros terminados = new ColaEnteros();
+    // Segmentos que han liberado algun carril desde el ultimo desbloqueo
+    ColaEnteros liberados = new ColaEnteros();
+    boolean[] liberado;
+    // Coches en la carretera (desde entrar hasta salir) y cuantos de ellos
+    // tienen una peticion pendiente de circulando, entrar o avanzar
+    int presentes;
+    int bloqueados;
+    IntConsumer vencido = coche -> {
+      if (plazo[coche] == rueda.ahora() && peticiones_circulando[coche] != null)
+        terminados.add(coche);
+    };
 
     Carretera(int segmentos, int carriles) {
-      this.carretera = new Car[segmentos][carriles];
+      this.carretera = new int[segmentos][carriles];
       this.carrilesLibres = new int[segmentos];
+      this.ocupacion = new Ocupacion(segmentos, carriles);
+      this.posiciones = new Posiciones(segmentos, carriles);
+      this.liberado = new boolean[segmentos];
       for (int segmento = 0; segmento < segmentos; segmento++) {
-        for (int carril = 0; carril < carriles; carril++) {
-          carretera[segmento][carril] = null;
-        }
         carrilesLibres[segmento] = carriles;
       }
     }
 
-    public Car obtener_coche(String id) {
-      Pos posicion = posiciones.get(id);
-      Car resultado = null;
-      if (posicion != null) {
-        resultado = carretera[posicion.getSegmento() - 1][posicion.getCarril() - 1];
-      }
-      return resultado;
+    // Hace sitio en los arrays de los coches para el indice dado
+    public void asegurar(int coche) {
+      if (coche < segmento.length)
+        return;
+      int antes = segmento.length;
+      int n = Math.max(coche + 1, Math.max(16, antes * 2));
+      segmento = Arrays.copyOf(segmento, n);
+      carril = Arrays.copyOf(carril, n);
+      plazo = Arrays.copyOf(plazo, n);
+      peticiones_circulando = Arrays.copyOf(peticiones_circulando, n);
+      Arrays.fill(segmento, antes, n, -1);
     }
 
-    public void eliminar_posicion(int segmento, int carril, String id) {
-      carretera[segmento][carril] = null;
-      carrilesLibres[segmento] = carrilesLibres[segmento] + 1;
+    public void eliminar_posicion(int coche) {
+      int s = segmento[coche];
+      int c = carril[coche];
+      publicar(EventoCarretera.Tipo.SALIR, coche, Pos.empaquetar(s + 1, c + 1));
+      carretera[s][c] = 0;
+      carrilesLibres[s] = carrilesLibres[s] + 1;
+      ocupacion.liberar(s, c);
+      marcar_liberado(s);
+      segmento[coche] = -1;
+    }
+
+    // Apunta que el segmento ha liberado un carril para que el desbloqueo de
+    // las peticiones de avanzar solo mire los segmentos que han cambiado
+    void marcar_liberado(int s) {
+      if (!liberado[s]) {
+        liberado[s] = true;
+        liberados.add(s);
+      }
     }
 
     /*
@@ -185,82 +359,126 @@ public class CarreteraCSP implements Carretera, CSProcess {
      * deberia no
      * ser alcanzable dado que en caso de no haber ningun carril libre se bloquearia
      * la ejecucion
+     * El carril libre de menor numero se obtiene del mapa de bits de ocupacion
      */
-    public Pos asignar_posicion(int segmento, Car coche) {
-      Car[] segmento_carretera = carretera[segmento];
+    public Pos asignar_posicion(int segmento, int coche) {
       Pos posicion = null;
-      for (int carril = 0; carril < carriles && posicion == null; carril++) {
-        if (segmento_carretera[carril] == null) {
-          // Se asigna la posicion de la carretera
-          segmento_carretera[carril] = coche;
-          // Se actualizan las estructuas de datos que permiten que modelizan el recurso y
-          // facilitan la busqueda
-          carrilesLibres[segmento] = carrilesLibres[segmento] - 1;
-          posicion = new Pos(segmento + 1, carril + 1);
-          posiciones.put(coche.id, posicion);
-        }
+      int carril = ocupacion.reclamar(segmento);
+      if (carril >= 0) {
+        // Se asigna la posicion de la carretera
+        carretera[segmento][carril] = coche + 1;
+        // Se actualizan las estructuas de datos que permiten que modelizan el recurso y
+        // facilitan la busqueda
+        carrilesLibres[segmento] = carrilesLibres[segmento] - 1;
+        posicion = posiciones.de(segmento, carril);
+        publicar(this.segmento[coche] < 0 ? EventoCarretera.Tipo.ENTRAR : EventoCarretera.Tipo.AVANZAR,
+                 coche, posicion.empaquetada());
+        this.segmento[coche] = segmento;
+        this.carril[coche] = carril;
       }
       return posicion;
     }
 
-    public void tick() {
-      System.out.println("Tick de la carretera");
-      for (String carId : posiciones.keySet()) {
-        Pos pos = posiciones.get(carId);
-        Car coche = carretera[pos.getSegmento() - 1][pos.getCarril() - 1];
-        if (coche.tks > 0) {
-          coche.tks--;
-        }
-      }
+    // Mueve el coche al siguiente segmento, que debe tener un carril libre
+    public Pos mover(int coche) {
+      int s = segmento[coche];
+      int c = carril[coche];
+      Pos posicion = asignar_posicion(s + 1, coche);
+      carretera[s][c] = 0;
+      carrilesLibres[s] = carrilesLibres[s] + 1;
+      ocupacion.liberar(s, c);
+      marcar_liberado(s);
+      return posicion;
+    }
+
+    // Fija el plazo del coche a tks ticks de ahora y lo programa en la rueda
+    public void programar(int coche, int tks) {
+      plazo[coche] = rueda.ahora() + tks;
+      if (tks > 0)
+        rueda.programar(coche, plazo[coche]);
+    }
+
+    // Devuelve si al coche le quedan ticks para llegar al final del segmento
+    public boolean circulando(int coche) {
+      return plazo[coche] > rueda.ahora();
+    }
+
+    public void tick(int n) {
+      if (n == 1)
+        rueda.tick(vencido);
+      else
+        rueda.tick(n, vencido);
+      Traza.evento(Traza.Nivel.DETALLE, "tick de la carretera", rueda.ahora());
+      publicar(EventoCarretera.Tipo.TICK, -1, 0);
+    }
+
+    // Publica un cambio si hay suscriptores
+    void publicar(EventoCarretera.Tipo tipo, int coche, long posicion) {
+      if (difusor.activo())
+        difusor.publicar(new EventoCarretera(tipo, coche < 0 ? null : registro.id(coche), posicion, rueda.ahora()));
+    }
+
+    // Ticks hasta que el siguiente coche termina su segmento si todos los
+    // coches estan bloqueados, 0 si alguno no lo esta o ninguno circula
+    public int ticksHastaSiguiente() {
+      if (presentes == 0 || bloqueados < presentes)
+        return 0;
+      long siguiente = rueda.siguiente();
+      if (siguiente == Long.MAX_VALUE)
+        return 0;
+      return (int) Math.min(Integer.MAX_VALUE, siguiente - rueda.ahora());
     }
 
+    // Vuelca el estado en la traza, solo se debe llamar con el nivel ESTADO activo
     public void print_state() {
-      System.out.println("Estado de la carretera:");
-      System.out.println("Carriles libres por segmento: " + java.util.Arrays.toString(carrilesLibres));
-      System.out.println(posiciones.toString());
+      Traza.evento(Traza.Nivel.ESTADO, "carriles libres por segmento", java.util.Arrays.toString(carrilesLibres));
+      StringBuilder posiciones = new StringBuilder("{");
+      for (int coche = 0; coche < segmento.length; coche++)
+        if (segmento[coche] >= 0)
+          posiciones.append(posiciones.length() > 1 ? ", " : "").append(coche)
+            .append('=').append(this.posiciones.de(segmento[coche], carril[coche]));
+      Traza.evento(Traza.Nivel.ESTADO, "posiciones", posiciones.append('}').toString());
     }
   }
 
+  // Devuelve el primer canal con peticiones esperando a partir del siguiente
+  // a ultimo, o -1 si no hay ninguna
+  private int siguientePendiente(int ultimo) {
+    for (int i = 1; i <= canales.length; i++) {
+      int op = (ultimo + i) % canales.length;
+      if (canales[op].in().pending())
+        return op;
+    }
+    return -1;
+  }
+
   // Código del servidor
   public void run() {
 
-    // Definición de constantes para las operaciones
-    final int ENTRAR = 0;
-    final int AVANZAR = 1;
-    final int SALIR = 2;
-    final int CIRCULANDO = 3;
-    final int TICK = 4;
-
-    final Guard[] guardas = new Guard[5];
-    guardas[ENTRAR] = chEntrar.in();
-    guardas[AVANZAR] = chAvanzar.in();
-    guardas[SALIR] = chSalir.in();
-    guardas[CIRCULANDO] = chCirculando.in();
-    guardas[TICK] = chTick.in();
+    // La guarda de cada operacion esta en el indice de su codigo
+    final Guard[] guardas = new Guard[canales.length];
+    for (int op = 0; op < canales.length; op++)
+      guardas[op] = canales[op].in();
 
     Carretera carretera = new Carretera(segmentos, carriles);
     /*
-     * Estructura de datos para almacenar los coches que estan circulando
-     * y su orden de prioridad basado en los ticks restantes.
-     * Se utiliza una PriorityQueue para mantener el orden de los coches
-     * Que deben ser desencolados primero
+     * Los coches que estan circulando y ya han llegado al final de su
+     * segmento los deja tick en carretera.terminados. Sus peticiones
+     * pendientes estan en carretera.peticiones_circulando
      */
-    PriorityQueue<Car> coches_circulando = new PriorityQueue<>((a, b) -> a.tks - b.tks);
-    /* Estructura de datos para asociar una peticion no atendida con un coche */
-    HashMap<String, PetCirculando> peticiones_circulando = new HashMap<>();
     /*
      * Estructura de datos para almacenar los coches que desean avanzar
      * en caso de que no haya carriles libres en el siguiente segmento.
      */
-    List<Queue<PetAvanzar>> peticionesAvanzar = new ArrayList<>(segmentos);
+    List<Queue<Peticion>> peticionesAvanzar = new ArrayList<>(segmentos);
     for (int i = 0; i < segmentos; i++) {
-      peticionesAvanzar.add(new LinkedList<>());
+      peticionesAvanzar.add(new ArrayDeque<>());
     }
     /*
      * Estructura de datos para almacenar los coches que desean entrar
      * en caso de que no haya carriles libres en el siguiente segmento.
      */
-    Queue<PetEntrar> peticionesEntrar = new LinkedList<>();
+    Queue<Peticion> peticionesEntrar = new ArrayDeque<>();
 
     // TODO: cambiar null por el array de canales
     Alternative servicios = new Alternative(guardas);
@@ -269,126 +487,150 @@ public class CarreteraCSP implements Carretera, CSProcess {
     while (true) {
 
       int servicio = servicios.fairSelect();
-      System.out.println(servicio + " seleccionado");
-
-
-      // TODO: ejecutar la operación solicitada por el cliente
-      switch (servicio) {
-        case ENTRAR:
-          PetEntrar peticionEntrar = (PetEntrar) chEntrar.in().read();
-          if (carretera.carrilesLibres[0] > 0) {
-            // Si hay carriles libres, asignar posición
-            Car coche = new Car(peticionEntrar.car, peticionEntrar.tks);
-            Pos posicion = carretera.asignar_posicion(0, coche);
-            peticionEntrar.respuesta.out().write(posicion);
-          } else {
-            // Si no hay carriles libres, almacenar la petición
-            peticionesEntrar.add(peticionEntrar);
-          }
-          break;
-        case AVANZAR:
-          PetAvanzar peticionAvanzar = (PetAvanzar) chAvanzar.in().read();
-          Pos pos_coche = carretera.posiciones.get(peticionAvanzar.car);
-          System.out.println(pos_coche.toString());
-          if (carretera.carrilesLibres[pos_coche.getSegmento()] > 0) {
-            // Si hay carriles libres, asignar posición
-            Car coche = carretera.obtener_coche(peticionAvanzar.car);
-            coche.tks = peticionAvanzar.tks;
-            Pos posicion = carretera.asignar_posicion(pos_coche.getSegmento(), coche);
-            carretera.eliminar_posicion(pos_coche.getSegmento() - 1, pos_coche.getCarril() - 1, peticionAvanzar.car);
-            peticionAvanzar.respuesta.out().write(posicion);
-          } else {
-            // Si no hay carriles libres, almacenar la petición
-            Queue<PetAvanzar> lista = peticionesAvanzar.get(pos_coche.getSegmento());
-            lista.add(peticionAvanzar);
-          }
-          break;
-        case SALIR:
-          PetSalir peticionSalir = (PetSalir) chSalir.in().read();
-          Pos pos_coche_salir = carretera.posiciones.get(peticionSalir.car);
-          carretera.eliminar_posicion(pos_coche_salir.getSegmento() - 1, pos_coche_salir.getCarril() - 1,
-              peticionSalir.car);
-          carretera.posiciones.remove(peticionSalir.car);
-          peticionSalir.respuesta.out().write(null);
-          break;
-        case CIRCULANDO:
-          PetCirculando peticionCirculando = (PetCirculando) chCirculando.in().read();
-          Pos pos_coche_circulando = carretera.posiciones.get(peticionCirculando.car);
-          Car coche_circulando = carretera.carretera[pos_coche_circulando.getSegmento() - 1][pos_coche_circulando.getCarril() - 1];
-          if (coche_circulando.tks > 0) {
-            coches_circulando.add(coche_circulando);
-            peticiones_circulando.put(peticionCirculando.car, peticionCirculando);
-          } else {
-            peticionCirculando.respuesta.out().write(null);
-          }
-          break;
-        case 4:
-          PetTick peticion_tick = (PetTick) chTick.in().read();
-          carretera.tick();
-          peticion_tick.respuesta.out().write(null);
-          break;
+      Traza.evento(Traza.Nivel.DETALLE, "servicio seleccionado", servicio);
+
+      // En el modo por lotes, despues de la peticion seleccionada se atienden
+      // todas las que ya estan esperando en los canales (una de cada canal en
+      // cada vuelta, para no dejar ninguno atras) y el desbloqueo de las
+      // peticiones pendientes se hace una sola vez para todo el lote
+      int atendidas = 0;
+      while (servicio >= 0) {
+        Peticion leida = (Peticion) canales[servicio].in().read();
+        atendidas++;
+
+        // TODO: ejecutar la operación solicitada por el cliente
+        switch (leida.op) {
+          case ENTRAR:
+            Peticion peticionEntrar = leida;
+            carretera.asegurar(peticionEntrar.coche);
+            carretera.presentes++;
+            // Se publica antes de avisar, para que el reloj vea el coche
+            presentes = carretera.presentes;
+            if (carretera.presentes == 1) {
+              Runnable aviso = CarreteraCSP.this.aviso;
+              if (aviso != null)
+                aviso.run();
+            }
+            // Si ya hay coches esperando (en un lote puede haberse liberado
+            // un carril para ellos) no se les adelanta: el desbloqueo del
+            // final del lote los atiende en orden
+            if (carretera.carrilesLibres[0] > 0 && peticionesEntrar.isEmpty()) {
+              // Si hay carriles libres, asignar posición
+              carretera.programar(peticionEntrar.coche, peticionEntrar.tks);
+              Pos posicion = carretera.asignar_posicion(0, peticionEntrar.coche);
+              responder(peticionEntrar, posicion);
+            } else {
+              // Si no hay carriles libres o hay coches esperando, almacenar
+              // la petición
+              peticionesEntrar.add(peticionEntrar);
+              carretera.bloqueados++;
+            }
+            break;
+          case AVANZAR:
+            Peticion peticionAvanzar = leida;
+            int siguiente = carretera.segmento[peticionAvanzar.coche] + 1;
+            Traza.evento(Traza.Nivel.DETALLE, "avanzar coche al segmento", peticionAvanzar.coche, siguiente + 1);
+            if (carretera.carrilesLibres[siguiente] > 0 && peticionesAvanzar.get(siguiente).isEmpty()) {
+              // Si hay carriles libres, asignar posición
+              carretera.programar(peticionAvanzar.coche, peticionAvanzar.tks);
+              Pos posicion = carretera.mover(peticionAvanzar.coche);
+              responder(peticionAvanzar, posicion);
+            } else {
+              // Si no hay carriles libres o hay coches esperando, almacenar
+              // la petición
+              Queue<Peticion> lista = peticionesAvanzar.get(siguiente);
+              lista.add(peticionAvanzar);
+              carretera.bloqueados++;
+            }
+            break;
+          case SALIR:
+            Peticion peticionSalir = leida;
+            carretera.eliminar_posicion(peticionSalir.coche);
+            carretera.presentes--;
+            presentes = carretera.presentes;
+            responder(peticionSalir, null);
+            break;
+          case CIRCULANDO:
+            Peticion peticionCirculando = leida;
+            if (carretera.circulando(peticionCirculando.coche)) {
+              carretera.peticiones_circulando[peticionCirculando.coche] = peticionCirculando;
+              carretera.bloqueados++;
+            } else {
+              responder(peticionCirculando, null);
+            }
+            break;
+          case TICK:
+            Peticion peticion_tick = leida;
+            int ticks = peticion_tick.tks == HASTA_SIGUIENTE ? carretera.ticksHastaSiguiente() : peticion_tick.tks;
+            if (ticks > 0)
+              carretera.tick(ticks);
+            responder(peticion_tick, ticks);
+            break;
+        }
+        servicio = lotes && atendidas < MAX_LOTE ? siguientePendiente(servicio) : -1;
+      }
+      Traza.evento(Traza.Nivel.DETALLE, "peticiones atendidas en el lote", atendidas);
+      // Los volcados de estado se construyen solo si la traza los va a escribir
+      if (Traza.activa(Traza.Nivel.ESTADO)) {
+        carretera.print_state();
+        Traza.evento(Traza.Nivel.ESTADO, "coches circulando terminados", carretera.terminados.toString());
+        Traza.evento(Traza.Nivel.ESTADO, "peticiones de entrar", peticionesEntrar.toString());
+        Traza.evento(Traza.Nivel.ESTADO, "peticiones de avanzar", peticionesAvanzar.toString());
       }
-      carretera.print_state();
-      System.out.println("Estado de los coches circulando: " + coches_circulando.toString());
-      System.out.println("El mapeo entre circulando y peticiones: " + peticiones_circulando.toString());
-      System.out.println("Peticiones de entrar: " + peticionesEntrar.toString());
-      System.out.println("Peticiones de avanzar: " + peticionesAvanzar.toString());
 
       /* Desbloquear aquellos coches que esten circulando y se cumple su CPRE */
-      if (!coches_circulando.isEmpty()) {
-        Car coche = coches_circulando.peek();
-        boolean extraer = true;
-        System.out.println("Coches circulando: " + coches_circulando.toString());
-        while (coche != null && extraer) {
-          if (coche.tks == 0) {
-            PetCirculando peticion = peticiones_circulando.get(coche.id);
-            peticion.respuesta.out().write(null);
-            coches_circulando.poll();
-            peticiones_circulando.remove(coche.id);
-          } else {
-            extraer = false;
-          }
-          coche = coches_circulando.peek();
+      if (!carretera.terminados.isEmpty()) {
+        while (!carretera.terminados.isEmpty()) {
+          int coche = carretera.terminados.poll();
+          Peticion peticion = carretera.peticiones_circulando[coche];
+          carretera.peticiones_circulando[coche] = null;
+          carretera.bloqueados--;
+          responder(peticion, null);
         }
       }
-      // Peticiones de avanzar
-      if (!peticionesAvanzar.isEmpty()) {
-        // Comprobamos si hay carriles libres para cada segmento
-        for (int i = peticionesAvanzar.size() - 1; i > 0; i--) {
-          // Rellenamos con peticiones hasta que no queden carriles libres
-          int plibres = carretera.carrilesLibres[i];
-          Queue<PetAvanzar> peticiones = peticionesAvanzar.get(i);
-          System.out.println("Avanzar segemento " + i + " con carriles libres: " + plibres);
-          while (plibres > 0 && !peticiones.isEmpty()) {
-            PetAvanzar peticion = peticiones.peek();
-            if (peticion != null) {
-              // Si hay carriles libres, asignar posición
-              Car coche = carretera.obtener_coche(peticion.car);
-              Pos pos_coche = carretera.posiciones.get(peticion.car);
-              Pos posicion = carretera.asignar_posicion(pos_coche.getSegmento(), coche);
-              carretera.eliminar_posicion(pos_coche.getSegmento() - 1, pos_coche.getCarril() - 1, peticion.car);
-              coche.tks = peticion.tks;
-              peticionesAvanzar.get(i).poll();
-              peticion.respuesta.out().write(posicion);
-              peticion = peticiones.peek();
-            }
-            plibres--;
-          }
-        }
-      }
-      if (!peticionesEntrar.isEmpty()) {
-        // Comprobamos si hay carriles libres en el primer segmento
-        if (carretera.carrilesLibres[0] > 0) {
-          PetEntrar peticion = peticionesEntrar.poll();
+      // Peticiones de avanzar: solo pueden atenderse ahora las de los segmentos
+      // que han liberado algun carril. Al mover un coche se libera su segmento,
+      // que se apunta y se mira en este mismo bucle
+      while (!carretera.liberados.isEmpty()) {
+        int i = carretera.liberados.poll();
+        carretera.liberado[i] = false;
+        // Rellenamos con peticiones hasta que no queden carriles libres
+        int plibres = carretera.carrilesLibres[i];
+        Queue<Peticion> peticiones = peticionesAvanzar.get(i);
+        Traza.evento(Traza.Nivel.DETALLE, "avanzar segmento con carriles libres", i, plibres);
+        while (plibres > 0 && !peticiones.isEmpty()) {
+          Peticion peticion = peticiones.peek();
           if (peticion != null) {
             // Si hay carriles libres, asignar posición
-            Car coche = new Car(peticion.car, peticion.tks);
-            Pos posicion = carretera.asignar_posicion(0, coche);
-            peticion.respuesta.out().write(posicion);
+            Pos posicion = carretera.mover(peticion.coche);
+            carretera.programar(peticion.coche, peticion.tks);
+            peticionesAvanzar.get(i).poll();
+            carretera.bloqueados--;
+            responder(peticion, posicion);
+            peticion = peticiones.peek();
           }
+          plibres--;
         }
       }
-      System.out.println("Fin desbloqueo de coches circulando y peticiones pendientes");
+      // Peticiones de entrar: se admiten tantas como carriles libres haya en
+      // el primer segmento, que en un lote pueden ser varios
+      while (carretera.carrilesLibres[0] > 0 && !peticionesEntrar.isEmpty()) {
+        Peticion peticion = peticionesEntrar.poll();
+        carretera.programar(peticion.coche, peticion.tks);
+        Pos posicion = carretera.asignar_posicion(0, peticion.coche);
+        carretera.bloqueados--;
+        responder(peticion, posicion);
+      }
+      completar();
+      // Avisar si todos los coches han quedado bloqueados en esta vuelta
+      boolean todos = carretera.presentes > 0 && carretera.bloqueados == carretera.presentes;
+      if (todos && !todosBloqueados) {
+        Runnable aviso = avisoBloqueo;
+        if (aviso != null)
+          aviso.run();
+      }
+      todosBloqueados = todos;
+      Traza.evento(Traza.Nivel.DETALLE, "fin desbloqueo de coches circulando y peticiones pendientes");
     }
     // TODO: atender peticiones pendientes que puedan ser atendida
   }
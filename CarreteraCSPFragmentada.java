@@ -0,0 +1,402 @@
+package cc.carretera;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.function.IntConsumer;
+
+import org.jcsp.lang.*;
+import org.jcsp.util.InfiniteBuffer;
+
+/**
+ * Carretera con CSP repartida en tramos: cada tramo es un grupo de
+ * segmentos consecutivos con su propio proceso servidor, de forma que las
+ * peticiones de coches en tramos distintos se atienden en paralelo.
+ *
+ * - Cada coche envia sus peticiones al tramo de su segmento, salvo avanzar,
+ *   que va al tramo del segmento siguiente. El cliente sabe en que segmento
+ *   y carril esta cada coche por la ultima posicion que recibio.
+ * - Si avanzar cruza de un tramo al siguiente, el tramo de destino asigna el
+ *   carril, responde al coche y manda al tramo de origen el carril que deja
+ *   libre por un canal entre tramos.
+ * - Un proceso coordinador reparte cada tick a todos los tramos y responde
+ *   cuando todos lo han aplicado. Mientras reparte, el reloj de dos tramos
+ *   puede diferir en un tick, asi que circulando devuelve al coche el tick
+ *   del tramo en el que termina su segmento y avanzar programa el siguiente
+ *   desde ese tick si el tramo de destino aun no lo ha alcanzado.
+ *
+ * Los canales entre tramos y los de confirmacion del tick tienen buffer
+ * para que ningun servidor se bloquee esperando a otro.
+ */
+public class CarreteraCSPFragmentada implements CarreteraIndexada {
+  // Codigos de operacion de las peticiones: indice de su canal en cada tramo
+  static final int ENTRAR = 0;
+  static final int AVANZAR = 1;
+  static final int SALIR = 2;
+  static final int CIRCULANDO = 3;
+  static final int TICK = 4;
+  static final int LIBERAR = 5;
+
+  // Sobre de una peticion, uno por hilo cliente como en CarreteraCSP. Lleva
+  // ademas la posicion (desde 0) que el coche deja libre al avanzar o salir,
+  // y el tick en el que el tramo respondio al ultimo circulando
+  static class Peticion {
+    int op;
+    int coche;
+    int tks;
+    int segmento;
+    int carril;
+    long tick;
+    final One2OneChannel respuesta = Channel.one2one();
+  }
+
+  private static final ThreadLocal<Peticion> sobre = ThreadLocal.withInitial(Peticion::new);
+
+  private final int segmentos;
+  private final int carriles;
+  private final Tramo[] tramos;
+  // Tramo de cada segmento
+  private final int[] tramoDe;
+  // Canal de peticiones de tick del coordinador
+  private final Any2OneChannel chTick = Channel.any2one();
+
+  private final Registro registro = new Registro();
+  // Ultima posicion empaquetada de cada coche (ver Pos.empaquetar), que solo
+  // escribe y lee el hilo del coche. Se guarda en bloques que no se copian al
+  // crecer para no perder la escritura de un coche mientras crece otro
+  private static final int BLOQUE = 1024;
+  private volatile long[][] posiciones = new long[0][];
+
+  /**
+   * Crea la carretera con tantos tramos como procesadores (y nunca mas que
+   * segmentos), o los que diga la propiedad carretera.csp.tramos.
+   */
+  public CarreteraCSPFragmentada(int segmentos, int carriles) {
+    this(segmentos, carriles,
+         Integer.getInteger("carretera.csp.tramos", Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Crea la carretera repartida en el numero de tramos dado (como mucho uno
+   * por segmento) y arranca sus procesos.
+   */
+  public CarreteraCSPFragmentada(int segmentos, int carriles, int ntramos) {
+    if (ntramos < 1) {
+      throw new IllegalArgumentException("una carretera siempre tiene tramos > 0");
+    }
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+    int n = Math.min(ntramos, segmentos);
+    this.tramos = new Tramo[n];
+    this.tramoDe = new int[segmentos];
+    for (int t = 0; t < n; t++) {
+      int desde = (int) ((long) segmentos * t / n);
+      int hasta = (int) ((long) segmentos * (t + 1) / n);
+      tramos[t] = new Tramo(t, desde, hasta);
+      Arrays.fill(tramoDe, desde, hasta, t);
+    }
+    for (Tramo tramo : tramos)
+      new ProcessManager(tramo).start();
+    new ProcessManager(new Coordinador()).start();
+  }
+
+  /**
+   * Devuelve el numero de tramos.
+   */
+  public int tramos() {
+    return tramos.length;
+  }
+
+  public int registrar(String id) {
+    int coche = registro.registrar(id);
+    if (coche >= posiciones.length * BLOQUE)
+      crecer(coche);
+    return coche;
+  }
+
+  public void desregistrar(int coche) {
+    registro.liberar(coche);
+  }
+
+  private synchronized void crecer(int coche) {
+    long[][] actual = posiciones;
+    if (coche < actual.length * BLOQUE)
+      return;
+    long[][] nuevo = Arrays.copyOf(actual, Math.max(coche / BLOQUE + 1, actual.length * 2));
+    for (int b = actual.length; b < nuevo.length; b++)
+      nuevo[b] = new long[BLOQUE];
+    posiciones = nuevo;
+  }
+
+  // Adaptadores de las operaciones con identificador: entrar registra el
+  // coche y salir lo da de baja
+  public Pos entrar(String car, int tks) {
+    return entrar(registrar(car), tks);
+  }
+
+  public Pos avanzar(String car, int tks) {
+    return avanzar(registro.buscar(car), tks);
+  }
+
+  public void salir(String car) {
+    int coche = registro.buscar(car);
+    salir(coche);
+    desregistrar(coche);
+  }
+
+  public void circulando(String car) {
+    circulando(registro.buscar(car));
+  }
+
+  // Envia la peticion al tramo y espera la respuesta
+  private Object pedir(int tramo, int op, int coche, int tks) {
+    long posicion = posiciones[coche / BLOQUE][coche % BLOQUE];
+    Peticion peticion = sobre.get();
+    peticion.op = op;
+    peticion.coche = coche;
+    peticion.tks = tks;
+    peticion.segmento = Pos.segmento(posicion) - 1;
+    peticion.carril = Pos.carril(posicion) - 1;
+    tramos[tramo].canales[op].out().write(peticion);
+    return peticion.respuesta.in().read();
+  }
+
+  // Segmento (desde 0) en el que esta el coche
+  private int segmento(int coche) {
+    return Pos.segmento(posiciones[coche / BLOQUE][coche % BLOQUE]) - 1;
+  }
+
+  private Pos recordar(int coche, Pos posicion) {
+    posiciones[coche / BLOQUE][coche % BLOQUE] = posicion.empaquetada();
+    return posicion;
+  }
+
+  public Pos entrar(int coche, int tks) {
+    sobre.get().tick = 0;
+    return recordar(coche, (Pos) pedir(0, ENTRAR, coche, tks));
+  }
+
+  public Pos avanzar(int coche, int tks) {
+    return recordar(coche, (Pos) pedir(tramoDe[segmento(coche) + 1], AVANZAR, coche, tks));
+  }
+
+  public void circulando(int coche) {
+    pedir(tramoDe[segmento(coche)], CIRCULANDO, coche, 0);
+  }
+
+  public void salir(int coche) {
+    pedir(tramoDe[segmento(coche)], SALIR, coche, 0);
+    posiciones[coche / BLOQUE][coche % BLOQUE] = 0;
+  }
+
+  public void tick() {
+    Peticion peticion = sobre.get();
+    peticion.op = TICK;
+    chTick.out().write(peticion);
+    peticion.respuesta.in().read();
+  }
+
+  // Reparte los ticks a todos los tramos y responde cuando todos los han
+  // aplicado
+  private class Coordinador implements CSProcess {
+    private final Any2OneChannel confirmaciones = Channel.any2one(new InfiniteBuffer());
+
+    public void run() {
+      while (true) {
+        Peticion peticion = (Peticion) chTick.in().read();
+        for (Tramo tramo : tramos)
+          tramo.canales[TICK].out().write(confirmaciones);
+        for (int t = 0; t < tramos.length; t++)
+          confirmaciones.in().read();
+        peticion.respuesta.out().write(null);
+      }
+    }
+  }
+
+  // Proceso servidor de los segmentos [desde, hasta). El estado de los
+  // segmentos se indexa con el segmento menos desde
+  private class Tramo implements CSProcess {
+    final int indice;
+    final int desde;
+    final int hasta;
+    // Canal de cada operacion; los de tick y liberar tienen buffer porque
+    // los escriben el coordinador y el tramo siguiente
+    final Any2OneChannel[] canales = new Any2OneChannel[6];
+
+    int[] carrilesLibres;
+    Ocupacion ocupacion;
+    Posiciones posiciones;
+    // Plazo y peticion de circulando pendiente de los coches del tramo
+    long[] plazo = new long[0];
+    Peticion[] peticiones_circulando = new Peticion[0];
+    RuedaTemporal rueda = new RuedaTemporal(256);
+    ColaEnteros terminados = new ColaEnteros();
+    IntConsumer vencido = coche -> {
+      if (plazo[coche] == rueda.ahora() && peticiones_circulando[coche] != null)
+        terminados.add(coche);
+    };
+    // Peticiones de avanzar que esperan carril en cada segmento del tramo y
+    // peticiones de entrar que esperan carril en el primer segmento
+    Queue<Peticion>[] peticionesAvanzar;
+    Queue<Peticion> peticionesEntrar = new ArrayDeque<>();
+    // Segmentos del tramo que han liberado algun carril desde el ultimo
+    // desbloqueo, como en CarreteraCSP
+    ColaEnteros liberados = new ColaEnteros();
+    boolean[] liberado;
+
+    @SuppressWarnings("unchecked")
+    Tramo(int indice, int desde, int hasta) {
+      this.indice = indice;
+      this.desde = desde;
+      this.hasta = hasta;
+      for (int op = 0; op < canales.length; op++)
+        canales[op] = op == TICK || op == LIBERAR ? Channel.any2one(new InfiniteBuffer()) : Channel.any2one();
+      int n = hasta - desde;
+      this.carrilesLibres = new int[n];
+      Arrays.fill(carrilesLibres, carriles);
+      this.ocupacion = new Ocupacion(n, carriles);
+      this.posiciones = new Posiciones(desde, hasta, carriles);
+      this.liberado = new boolean[n];
+      this.peticionesAvanzar = (Queue<Peticion>[]) new Queue<?>[n];
+      for (int i = 0; i < n; i++)
+        peticionesAvanzar[i] = new ArrayDeque<>();
+    }
+
+    void asegurar(int coche) {
+      if (coche < plazo.length)
+        return;
+      int n = Math.max(coche + 1, Math.max(16, plazo.length * 2));
+      plazo = Arrays.copyOf(plazo, n);
+      peticiones_circulando = Arrays.copyOf(peticiones_circulando, n);
+    }
+
+    // Asigna al coche un carril del segmento, que debe tener uno libre, y
+    // programa el final del segmento
+    Pos asignar_posicion(int segmento, Peticion peticion) {
+      int carril = ocupacion.reclamar(segmento - desde);
+      carrilesLibres[segmento - desde]--;
+      asegurar(peticion.coche);
+      //  Si el coche viene de un tramo que ya ha recibido un tick que este
+      //  aun no ha aplicado, su segmento empieza en el tick de aquel
+      plazo[peticion.coche] = Math.max(rueda.ahora(), peticion.tick) + peticion.tks;
+      if (peticion.tks > 0)
+        rueda.programar(peticion.coche, plazo[peticion.coche]);
+      return posiciones.de(segmento, carril);
+    }
+
+    void eliminar_posicion(int segmento, int carril) {
+      int i = segmento - desde;
+      ocupacion.liberar(i, carril);
+      carrilesLibres[i]++;
+      if (!liberado[i]) {
+        liberado[i] = true;
+        liberados.add(i);
+      }
+    }
+
+    // Pasa el coche de la peticion al segmento siguiente y libera el carril
+    // que deja, aqui o en el tramo anterior
+    void mover(Peticion peticion) {
+      int origen = peticion.segmento;
+      int carril = peticion.carril;
+      Pos posicion = asignar_posicion(origen + 1, peticion);
+      peticion.respuesta.out().write(posicion);
+      if (origen >= desde) {
+        eliminar_posicion(origen, carril);
+      } else {
+        Traza.evento(Traza.Nivel.DETALLE, "coche pasa al tramo", peticion.coche, indice);
+        tramos[indice - 1].canales[LIBERAR].out().write(new Pos(origen + 1, carril + 1));
+      }
+    }
+
+    public void run() {
+      final Guard[] guardas = new Guard[canales.length];
+      for (int op = 0; op < canales.length; op++)
+        guardas[op] = canales[op].in();
+      Alternative servicios = new Alternative(guardas);
+
+      while (true) {
+        int servicio = servicios.fairSelect();
+        // Se atienden por lotes, como CarreteraCSP con lotes
+        int atendidas = 0;
+        while (servicio >= 0) {
+          Object leido = canales[servicio].in().read();
+          atendidas++;
+          switch (servicio) {
+            case ENTRAR:
+            case AVANZAR:
+              Peticion peticionMover = (Peticion) leido;
+              int destino = servicio == ENTRAR ? desde : peticionMover.segmento + 1;
+              // Con coches ya esperando carril (en un lote puede haberse
+              // liberado uno para ellos) no se les adelanta: el desbloqueo
+              // del final del lote los atiende en orden
+              Queue<Peticion> cola = servicio == ENTRAR ? peticionesEntrar : peticionesAvanzar[destino - desde];
+              if (carrilesLibres[destino - desde] > 0 && cola.isEmpty()) {
+                if (servicio == ENTRAR)
+                  peticionMover.respuesta.out().write(asignar_posicion(desde, peticionMover));
+                else
+                  mover(peticionMover);
+              } else {
+                cola.add(peticionMover);
+              }
+              break;
+            case SALIR:
+              Peticion peticionSalir = (Peticion) leido;
+              eliminar_posicion(peticionSalir.segmento, peticionSalir.carril);
+              peticionSalir.respuesta.out().write(null);
+              break;
+            case CIRCULANDO:
+              Peticion peticionCirculando = (Peticion) leido;
+              if (plazo[peticionCirculando.coche] > rueda.ahora()) {
+                peticiones_circulando[peticionCirculando.coche] = peticionCirculando;
+              } else {
+                peticionCirculando.tick = rueda.ahora();
+                peticionCirculando.respuesta.out().write(null);
+              }
+              break;
+            case TICK:
+              rueda.tick(vencido);
+              ((Any2OneChannel) leido).out().write(null);
+              break;
+            case LIBERAR:
+              Pos libre = (Pos) leido;
+              eliminar_posicion(libre.getSegmento() - 1, libre.getCarril() - 1);
+              break;
+          }
+          servicio = atendidas < CarreteraCSP.MAX_LOTE ? siguientePendiente(servicio) : -1;
+        }
+
+        // Desbloqueo de los coches que han terminado de circular
+        while (!terminados.isEmpty()) {
+          int coche = terminados.poll();
+          Peticion peticion = peticiones_circulando[coche];
+          peticiones_circulando[coche] = null;
+          peticion.tick = rueda.ahora();
+          peticion.respuesta.out().write(null);
+        }
+        // Peticiones de avanzar de los segmentos que han liberado carriles
+        while (!liberados.isEmpty()) {
+          int i = liberados.poll();
+          liberado[i] = false;
+          Queue<Peticion> peticiones = peticionesAvanzar[i];
+          while (carrilesLibres[i] > 0 && !peticiones.isEmpty())
+            mover(peticiones.poll());
+        }
+        // Peticiones de entrar (solo en el primer tramo)
+        while (!peticionesEntrar.isEmpty() && carrilesLibres[0] > 0) {
+          Peticion peticion = peticionesEntrar.poll();
+          peticion.respuesta.out().write(asignar_posicion(desde, peticion));
+        }
+      }
+    }
+
+    private int siguientePendiente(int ultimo) {
+      for (int i = 1; i <= canales.length; i++) {
+        int op = (ultimo + i) % canales.length;
+        if (canales[op].in().pending())
+          return op;
+      }
+      return -1;
+    }
+  }
+}
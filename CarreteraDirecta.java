@@ -0,0 +1,14 @@
+package cc.carretera;
+
+/**
+ * CarreteraMonitor con el estado de los segmentos fuera del heap (ver
+ * SegmentosDirectos), para carreteras de millones de segmentos. El
+ * protocolo es el de CarreteraMonitor; lo que ocupa en el heap depende de
+ * los coches y no de la longitud de la carretera.
+ */
+public class CarreteraDirecta extends CarreteraMonitor {
+  public CarreteraDirecta(int segmentos, int carriles)
+  {
+    super(segmentos, carriles, new SegmentosDirectos(segmentos, carriles));
+  }
+}
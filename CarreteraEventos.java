@@ -0,0 +1,333 @@
+package cc.carretera;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Simulacion de eventos discretos de una carretera con la misma semantica
+ * que CarreteraMonitor, en un solo hilo y sin hilos por coche.
+ *
+ * Cada coche es una maquina de estados (fuera, circulando en un segmento,
+ * esperando carril) y los unicos eventos son su llegada y el final de su
+ * segmento, guardados en una ColaEventos por tick. La simulacion salta
+ * directamente al siguiente tick en el que ocurre algo. En ese tick cada
+ * coche que termina hace lo que haria su hilo con CarreteraMonitor al volver
+ * de circulando: avanzar (o salir en el ultimo segmento), y cada coche que
+ * llega hace entrar:
+ * - el carril asignado es el libre de menor numero,
+ * - si no hay carril libre, o ya hay coches esperando en el segmento, el
+ *   coche espera al final de la cola FIFO del segmento conservando su carril,
+ * - al liberarse un carril se asigna al primero de la cola en ese mismo
+ *   tick, lo que libera su carril anterior, y asi sucesivamente,
+ * - un coche que entra en un segmento en el tick t llega al final en t+tks.
+ * Los eventos de un mismo tick se procesan por indice de coche, que es uno
+ * de los ordenes posibles entre los hilos de la implementacion con hilos.
+ *
+ * Los indices de los coches que salen se reutilizan para los que llegan
+ * despues.
+ */
+public class CarreteraEventos {
+  /**
+   * Recibe los movimientos de los coches.
+   */
+  public interface Observador {
+    /**
+     * El coche ha pasado a la posicion dada (empaquetada, ver
+     * Pos.empaquetar) en el tick dado, o ha salido de la carretera si la
+     * posicion es 0.
+     */
+    void mover(int coche, long tick, long posicion);
+  }
+
+  private final int segmentos;
+  private final int[] carrilesLibres;
+  private final Ocupacion ocupacion;
+  //  Cola FIFO de los coches que esperan carril en cada segmento, creada la
+  //  primera vez que alguien espera en el
+  private final ColaEnteros[] espera;
+  private final ColaEventos eventos = new ColaEventos();
+  private Observador observador;
+  private long ahora;
+  private long procesados;
+  private int enCarretera;
+
+  //  Estado de cada coche: velocidad (tks), segmento y carril desde 0
+  //  (segmento -1 si aun no ha entrado)
+  private int[] velocidad = new int[16];
+  private int[] segmento = new int[16];
+  private int[] carril = new int[16];
+  //  Indices libres y primer indice nunca usado
+  private final ColaEnteros libres = new ColaEnteros();
+  private int limite;
+
+  public CarreteraEventos(int segmentos, int carriles) {
+    if (segmentos <= 0 || carriles <= 0) {
+      throw new IllegalArgumentException("una carretera siempre tiene segmentos > 0 y carriles > 0");
+    }
+    this.segmentos = segmentos;
+    this.carrilesLibres = new int[segmentos];
+    Arrays.fill(carrilesLibres, carriles);
+    this.ocupacion = new Ocupacion(segmentos, carriles);
+    this.espera = new ColaEnteros[segmentos];
+  }
+
+  /**
+   * Fija quien recibe los movimientos de los coches (null para ninguno).
+   */
+  public void observador(Observador observador) {
+    this.observador = observador;
+  }
+
+  /**
+   * Programa la llegada de un coche, que hara entrar en el tick dado.
+   *
+   * @param tick tick de llegada, no anterior al actual
+   * @param tks ticks que tarda el coche en recorrer un segmento
+   * @return indice del coche, valido hasta que salga de la carretera
+   */
+  public int llegada(long tick, int tks) {
+    if (tick < ahora) {
+      throw new IllegalArgumentException("la llegada " + tick + " es anterior al tick actual " + ahora);
+    }
+    if (tks < 0) {
+      throw new IllegalArgumentException("un coche siempre tiene tks >= 0");
+    }
+    int coche;
+    if (!libres.isEmpty()) {
+      coche = libres.poll();
+    } else {
+      coche = limite++;
+      if (coche == velocidad.length) {
+        velocidad = Arrays.copyOf(velocidad, coche * 2);
+        segmento = Arrays.copyOf(segmento, coche * 2);
+        carril = Arrays.copyOf(carril, coche * 2);
+      }
+    }
+    velocidad[coche] = tks;
+    segmento[coche] = -1;
+    eventos.add(tick, coche);
+    return coche;
+  }
+
+  /**
+   * Devuelve el tick actual: el del ultimo paso.
+   */
+  public long ahora() {
+    return ahora;
+  }
+
+  /**
+   * Devuelve el tick del siguiente evento, o Long.MAX_VALUE si no hay.
+   */
+  public long siguiente() {
+    return eventos.isEmpty() ? Long.MAX_VALUE : eventos.tick();
+  }
+
+  /**
+   * Devuelve el numero de eventos procesados.
+   */
+  public long procesados() {
+    return procesados;
+  }
+
+  /**
+   * Devuelve el numero de coches en la carretera (circulando o esperando
+   * carril para avanzar).
+   */
+  public int enCarretera() {
+    return enCarretera;
+  }
+
+  /**
+   * Salta al siguiente tick con eventos y los procesa todos.
+   *
+   * @return false si no habia ningun evento
+   */
+  public boolean paso() {
+    if (eventos.isEmpty())
+      return false;
+    ahora = eventos.tick();
+    while (!eventos.isEmpty() && eventos.tick() == ahora) {
+      int coche = eventos.elemento();
+      eventos.poll();
+      procesados++;
+      int s = segmento[coche];
+      if (s < 0)
+        entrar(coche);
+      else if (s == segmentos - 1)
+        salir(coche);
+      else
+        avanzar(coche);
+    }
+    return true;
+  }
+
+  /**
+   * Procesa pasos hasta que no quedan eventos o el siguiente es posterior
+   * a hasta.
+   *
+   * @return eventos procesados
+   */
+  public long simular(long hasta) {
+    long antes = procesados;
+    while (!eventos.isEmpty() && eventos.tick() <= hasta)
+      paso();
+    return procesados - antes;
+  }
+
+  private void entrar(int coche) {
+    if (carrilesLibres[0] > 0 && !hay_espera(0))
+      asignar_posicion(0, coche);
+    else
+      esperar(0, coche);
+  }
+
+  private void avanzar(int coche) {
+    int s = segmento[coche];
+    if (carrilesLibres[s + 1] > 0 && !hay_espera(s + 1)) {
+      int c = carril[coche];
+      asignar_posicion(s + 1, coche);
+      liberar(s, c);
+    } else {
+      esperar(s + 1, coche);
+    }
+  }
+
+  private void salir(int coche) {
+    int s = segmento[coche];
+    int c = carril[coche];
+    enCarretera--;
+    if (observador != null)
+      observador.mover(coche, ahora, 0);
+    libres.add(coche);
+    liberar(s, c);
+  }
+
+  private boolean hay_espera(int s) {
+    return espera[s] != null && !espera[s].isEmpty();
+  }
+
+  private void esperar(int s, int coche) {
+    if (espera[s] == null)
+      espera[s] = new ColaEnteros();
+    espera[s].add(coche);
+  }
+
+  //  Pone el coche en el carril libre de menor numero del segmento y
+  //  programa el final del segmento
+  private void asignar_posicion(int s, int coche) {
+    int c = ocupacion.reclamar(s);
+    carrilesLibres[s]--;
+    if (segmento[coche] < 0)
+      enCarretera++;
+    segmento[coche] = s;
+    carril[coche] = c;
+    eventos.add(ahora + velocidad[coche], coche);
+    if (observador != null)
+      observador.mover(coche, ahora, Pos.empaquetar(s + 1, c + 1));
+  }
+
+  //  Libera el carril y se lo asigna al primero de la cola del segmento, que
+  //  libera a su vez su carril en el segmento anterior
+  private void liberar(int s, int c) {
+    while (true) {
+      ocupacion.liberar(s, c);
+      carrilesLibres[s]++;
+      if (!hay_espera(s))
+        return;
+      int coche = espera[s].poll();
+      int anterior = segmento[coche];
+      int carrilAnterior = carril[coche];
+      asignar_posicion(s, coche);
+      if (anterior < 0)
+        return;
+      s = anterior;
+      c = carrilAnterior;
+    }
+  }
+
+  // Simulacion desde la linea de ordenes
+  static void uso() {
+    System.out.println
+      ("Uso: CarreteraEventos [opciones]\n"
+       +"  --segmentos N      segmentos de la carretera (por defecto 10)\n"
+       +"  --carriles N       carriles por segmento (por defecto 4)\n"
+       +"  --coches N         coches que recorren la carretera (por defecto 1000000)\n"
+       +"  --velocidad A[:B]  ticks por segmento, uniforme en [A,B] (por defecto 1:4)\n"
+       +"  --llegadas N       coches que llegan en cada tick (por defecto carriles)\n"
+       +"  --semilla N        semilla de las velocidades (por defecto 42)\n"
+       +"  --trayectorias     escribe cada movimiento: coche tick segmento carril");
+  }
+
+  public static void main(String[] args) {
+    int segmentos = 10;
+    int carriles = 4;
+    long coches = 1_000_000;
+    int minVelocidad = 1;
+    int maxVelocidad = 4;
+    int llegadas = -1;
+    long semilla = 42;
+    boolean trayectorias = false;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String opt = args[i];
+        if (opt.equals("--trayectorias")) {
+          trayectorias = true;
+          continue;
+        }
+        if (opt.equals("--help") || opt.equals("-h") || i + 1 >= args.length) {
+          uso();
+          return;
+        }
+        String val = args[++i];
+        switch (opt) {
+          case "--segmentos": segmentos = Integer.parseInt(val); break;
+          case "--carriles": carriles = Integer.parseInt(val); break;
+          case "--coches": coches = Long.parseLong(val); break;
+          case "--velocidad":
+            int dos = val.indexOf(':');
+            minVelocidad = Integer.parseInt(dos < 0 ? val : val.substring(0, dos));
+            maxVelocidad = dos < 0 ? minVelocidad : Integer.parseInt(val.substring(dos + 1));
+            break;
+          case "--llegadas": llegadas = Integer.parseInt(val); break;
+          case "--semilla": semilla = Long.parseLong(val); break;
+          default: throw new IllegalArgumentException("opcion desconocida " + opt);
+        }
+      }
+      if (minVelocidad < 0 || maxVelocidad < minVelocidad)
+        throw new IllegalArgumentException("velocidad incorrecta " + minVelocidad + ":" + maxVelocidad);
+    } catch (IllegalArgumentException e) {
+      System.out.println("*** Error: " + e.getMessage());
+      uso();
+      System.exit(2);
+    }
+    if (llegadas <= 0)
+      llegadas = carriles;
+
+    CarreteraEventos cr = new CarreteraEventos(segmentos, carriles);
+    if (trayectorias)
+      cr.observador((coche, tick, posicion) ->
+                    System.out.println(coche + " " + tick + " " + Pos.segmento(posicion) + " " + Pos.carril(posicion)));
+    SplittableRandom rnd = new SplittableRandom(semilla);
+    long inicio = System.nanoTime();
+    long llegados = 0;
+    long tickLlegada = 0;
+    //  Las llegadas se programan tick a tick, solo hasta el siguiente evento,
+    //  para que la cola de eventos no tenga todos los coches a la vez
+    while (true) {
+      while (llegados < coches && tickLlegada <= cr.siguiente()) {
+        for (int i = 0; i < llegadas && llegados < coches; i++, llegados++)
+          cr.llegada(tickLlegada, minVelocidad + rnd.nextInt(maxVelocidad - minVelocidad + 1));
+        tickLlegada++;
+      }
+      if (!cr.paso())
+        break;
+    }
+    double segundos = (System.nanoTime() - inicio) / 1e9;
+    System.err.println("coches:           " + coches);
+    System.err.println("ticks simulados:  " + cr.ahora());
+    System.err.println("eventos:          " + cr.procesados());
+    System.err.printf("tiempo:           %.3f s%n", segundos);
+    System.err.printf("eventos/s:        %.1f%n", cr.procesados() / segundos);
+  }
+}
@@ -0,0 +1,88 @@
+package cc.carretera;
+
+/**
+ * Carretera con operaciones sobre indices enteros de coche en lugar de
+ * identificadores. Un coche se registra una vez y usa su indice en todas
+ * las operaciones, que asi no tienen que buscar el identificador en un
+ * mapa. Las operaciones con String de Carretera son un adaptador sobre
+ * estas: registran el coche en entrar y lo dan de baja en salir.
+ *
+ * entrarEmpaquetado y avanzarEmpaquetado devuelven la posicion empaquetada
+ * en un long (ver Pos.empaquetar) en lugar de como un objeto Pos.
+ */
+public interface CarreteraIndexada extends Carretera {
+  /**
+   * Registra un coche y devuelve su indice. Si ya estaba registrado
+   * devuelve el mismo indice.
+   *
+   * @param id identificador del coche
+   */
+  int registrar(String id);
+
+  /**
+   * Da de baja un coche que no esta en la carretera. Su indice podra
+   * asignarse a otro coche.
+   *
+   * @param coche indice del coche
+   */
+  void desregistrar(int coche);
+
+  /**
+   * Como entrar(String, int) para un coche registrado.
+   *
+   * @param coche indice del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   *
+   * @return posición (segmento/carril) que ocupa el coche, ver clase Pos
+   */
+  Pos entrar(int coche, int tks);
+
+  /**
+   * Como avanzar(String, int) para un coche registrado.
+   *
+   * @param coche indice del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   *
+   * @return posición (segmento/carril) que ocupa el coche, ver clase Pos
+   */
+  Pos avanzar(int coche, int tks);
+
+  /**
+   * Como entrar(int, int) pero devuelve la posicion empaquetada.
+   *
+   * @param coche indice del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   *
+   * @return posición que ocupa el coche empaquetada, ver Pos.empaquetar
+   */
+  default long entrarEmpaquetado(int coche, int tks) {
+    return entrar(coche, tks).empaquetada();
+  }
+
+  /**
+   * Como avanzar(int, int) pero devuelve la posicion empaquetada.
+   *
+   * @param coche indice del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   *
+   * @return posición que ocupa el coche empaquetada, ver Pos.empaquetar
+   */
+  default long avanzarEmpaquetado(int coche, int tks) {
+    return avanzar(coche, tks).empaquetada();
+  }
+
+  /**
+   * Como circulando(String) para un coche registrado.
+   *
+   * @param coche indice del coche
+   */
+  void circulando(int coche);
+
+  /**
+   * Como salir(String) para un coche registrado. El coche sigue
+   * registrado y puede volver a entrar con el mismo indice.
+   *
+   * @param coche indice del coche
+   */
+  void salir(int coche);
+}
@@ -0,0 +1,427 @@
+package cc.carretera;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/*
+ * Headless load driver: drives a Carretera implementation with a large
+ * number of cars and no GUI, and reports throughput. Every car runs the same protocol as the
+ * car threads of Sim (entrar, circulando, [avanzar, circulando]*, salir)
+ * and every returned position is validated with CarreteraSim.checkResult.
+ *
+ * Cars are run by a fixed pool of driver threads, each one taking the
+ * next car when its current car leaves the road, so 10^5-10^6 cars do
+ * not need 10^5-10^6 threads. With --hilos virtual the drivers are
+ * virtual threads (see Hilos) and by default there is one per car, or
+ * one per carrier thread on the implementations whose cars hold their
+ * carrier while blocked (Hilos.maximoVirtuales).
+ * With --api async there are no driver threads: every car protocol is a
+ * chain of futures of a CarreteraAsincrona, run on the common pool, and
+ * --threads is the number of cars driven at the same time.
+ * A Reloj calls tick() at a fixed rate.
+ *
+ * A car that fails a check or raises an exception leaves the road so that
+ * its lane does not block the other cars, and the run stops waiting for
+ * the drivers and reports the failure as soon as it happens.
+ */
+public class CarreteraLoad {
+
+  // Options
+  String impl = "monitor";
+  int segmentos = 10;
+  int carriles = 4;
+  long numCars = 100_000;
+  int minVelocidad = 1;
+  int maxVelocidad = 4;
+  long tickMicros = 100;
+  boolean compressed = false;
+  int threads = 0;
+  boolean threadsGiven = false;
+  Hilos.Modo hilos = Hilos.Modo.PLATAFORMA;
+  boolean async = false;
+  long seed = 42;
+  long maxSeconds = 0;
+
+  // Period in milliseconds of the checks for a failure while waiting for
+  // the drivers
+  static final long WAIT_MILLIS = 100;
+
+  // Progress counters
+  final AtomicLong nextCar = new AtomicLong();
+  final AtomicLong completedTrips = new AtomicLong();
+  final AtomicLong carSegments = new AtomicLong();
+  final AtomicReference<String> failure = new AtomicReference<>();
+  Reloj reloj;
+
+  static void usage() {
+    System.out.println
+      ("Usage: CarreteraSim [options]\n"
+       +"  --impl NAME        implementation: "+Carreteras.nombres()+" or a class name (default monitor)\n"
+       +"  --segmentos N      segments of the road (default 10)\n"
+       +"  --carriles N       lanes per segment (default 4)\n"
+       +"  --cars N           number of cars to drive through the road (default 100000)\n"
+       +"  --velocidad A[:B]  car speed in ticks per segment, uniform in [A,B] (default 1:4)\n"
+       +"  --tick-us N        microseconds between ticks, 0 = as fast as possible (default 100)\n"
+       +"  --time MODE        real, or compressed to jump to the next car that ends its segment\n"
+       +"                     once every car is blocked (default real)\n"
+       +"  --threads N        driver threads (default segmentos*carriles+carriles, at most 4096,\n"
+       +"                     or one per car with virtual threads, at most one per carrier\n"
+       +"                     thread on the CSP implementations)\n"
+       +"  --hilos MODE       plataforma or virtual driver threads (default plataforma)\n"
+       +"  --api MODE         sync, or async to drive the cars with futures and no driver\n"
+       +"                     threads, one car per --threads at a time (default sync)\n"
+       +"  --seed N           seed for the speed distribution (default 42)\n"
+       +"  --max-seconds N    give up after N seconds, 0 = never (default 0)");
+  }
+
+  public static void main(String[] args) {
+    CarreteraLoad load = new CarreteraLoad();
+    try {
+      load.parse(args);
+    } catch (IllegalArgumentException exc) {
+      System.out.println("\n*** Error: "+exc.getMessage());
+      usage();
+      System.exit(2);
+    }
+    System.exit(load.run() ? 0 : 1);
+  }
+
+  void parse(String[] args) {
+    for (int i=0; i<args.length; i++) {
+      String opt = args[i];
+      if (opt.equals("--help") || opt.equals("-h")) {
+        usage();
+        System.exit(0);
+      }
+      if (i+1 >= args.length)
+        throw new IllegalArgumentException("missing value for "+opt);
+      String val = args[++i];
+      switch (opt) {
+        case "--impl": impl = val; break;
+        case "--segmentos": segmentos = Integer.parseInt(val); break;
+        case "--carriles": carriles = Integer.parseInt(val); break;
+        case "--cars": numCars = Long.parseLong(val); break;
+        case "--velocidad":
+          int colon = val.indexOf(':');
+          minVelocidad = Integer.parseInt(colon < 0 ? val : val.substring(0,colon));
+          maxVelocidad = colon < 0 ? minVelocidad : Integer.parseInt(val.substring(colon+1));
+          break;
+        case "--tick-us": tickMicros = Long.parseLong(val); break;
+        case "--time":
+          if (!val.equals("real") && !val.equals("compressed"))
+            throw new IllegalArgumentException("unknown time mode "+val);
+          compressed = val.equals("compressed");
+          break;
+        case "--threads": threads = Integer.parseInt(val); threadsGiven = threads > 0; break;
+        case "--hilos": hilos = Hilos.Modo.valueOf(val.toUpperCase()); break;
+        case "--api":
+          if (!val.equals("sync") && !val.equals("async"))
+            throw new IllegalArgumentException("unknown api "+val);
+          async = val.equals("async");
+          break;
+        case "--seed": seed = Long.parseLong(val); break;
+        case "--max-seconds": maxSeconds = Long.parseLong(val); break;
+        default: throw new IllegalArgumentException("unknown option "+opt);
+      }
+    }
+    if (segmentos < 1 || carriles < 1)
+      throw new IllegalArgumentException("segmentos and carriles cannot be smaller than 1");
+    if (minVelocidad < 1 || maxVelocidad < minVelocidad)
+      throw new IllegalArgumentException("bad velocidad range "+minVelocidad+":"+maxVelocidad);
+    if (hilos == Hilos.Modo.VIRTUAL && !Hilos.virtualesDisponibles())
+      throw new IllegalArgumentException("this JVM has no virtual threads");
+    if (threads <= 0 && (hilos == Hilos.Modo.VIRTUAL || async))
+      threads = (int) Math.min(Integer.MAX_VALUE-8, numCars);
+    if (threads <= 0)
+      threads = (int) Math.min(4096, Math.min(numCars, (long) segmentos*carriles+carriles));
+  }
+
+  boolean run() {
+    Carretera cr;
+    try {
+      cr = Carreteras.crear(impl,segmentos,carriles);
+    } catch (Throwable exc) {
+      System.out.println
+        ("\n*** Error: creating "+impl+"("+segmentos+","+carriles+") raised the exception "+exc);
+      return false;
+    }
+    try {
+      reloj = new Reloj(cr,tickMicros*1000,compressed);
+    } catch (IllegalArgumentException exc) {
+      System.out.println("\n*** Error: "+exc.getMessage());
+      return false;
+    }
+    if (async && !(cr instanceof CarreteraAsincrona)) {
+      System.out.println("\n*** Error: "+impl+" has no asynchronous operations");
+      return false;
+    }
+    // Cars blocked on a JCSP channel hold their carrier thread: with more
+    // virtual drivers than carriers the cars that would free the lanes
+    // could never run
+    if (!async && hilos == Hilos.Modo.VIRTUAL && threads > Hilos.maximoVirtuales(cr)) {
+      if (threadsGiven) {
+        System.out.println
+          ("\n*** Error: "+impl+" cannot run more than "+Hilos.maximoVirtuales(cr)
+           +" virtual driver threads (one per carrier thread, see Hilos)");
+        return false;
+      }
+      threads = Hilos.maximoVirtuales(cr);
+    }
+
+    System.out.println
+      ("Load of "+numCars+" cars with velocidad "+minVelocidad+":"+maxVelocidad
+       +" on "+impl+" with "+segmentos+" segmentos and "+carriles+" lanes, "
+       +(async ? threads+" asynchronous cars at a time" : threads+" "+hilos.toString().toLowerCase()+" driver threads")
+       +", tick every "+tickMicros+" us"
+       +(compressed ? " (compressed time)" : ""));
+
+    long start = System.nanoTime();
+    if (async)
+      return runAsync((CarreteraAsincrona) cr, start);
+
+    // One thread per car at a time: takes cars until there are none left
+    Hilos.modo(hilos);
+    Thread[] drivers = new Thread[threads];
+    for (int t=0; t<threads; t++) {
+      SplittableRandom rnd = new SplittableRandom(seed+t);
+      drivers[t] = Hilos.nuevo("driver-"+t, () -> {
+          long car;
+          while (failure.get() == null && (car = nextCar.getAndIncrement()) < numCars) {
+            int velocidad = minVelocidad + rnd.nextInt(maxVelocidad-minVelocidad+1);
+            if (!driveCar(cr,"car"+car,velocidad))
+              return;
+            completedTrips.incrementAndGet();
+          }
+        });
+      drivers[t].setDaemon(true);
+      drivers[t].start();
+    }
+
+    // Avance time at the requested rate until every car has left
+    reloj.setDaemon(true);
+    reloj.setUncaughtExceptionHandler((th,exc) -> failure.compareAndSet(null,"tick() raised the exception "+exc));
+    reloj.start();
+
+    long deadline = maxSeconds > 0 ? start + maxSeconds*1_000_000_000L : Long.MAX_VALUE;
+    try {
+      for (Thread driver : drivers) {
+        while (driver.isAlive() && failure.get() == null) {
+          long left = deadline - System.nanoTime();
+          if (left <= 0) {
+            failure.compareAndSet(null,"gave up after "+maxSeconds+" seconds");
+            break;
+          }
+          driver.join(Math.max(1,Math.min(WAIT_MILLIS,left/1_000_000)));
+        }
+        // A failed road may never let the remaining drivers finish
+        if (failure.get() != null)
+          break;
+      }
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null,"interrupted");
+    }
+    reloj.detener();
+    long wall = System.nanoTime() - start;
+
+    report(cr,wall);
+    return failure.get() == null;
+  }
+
+  // Drives the cars with futures: each of the threads slots starts the next
+  // car when its current car leaves the road
+  boolean runAsync(CarreteraAsincrona cr, long start) {
+    CompletableFuture<?>[] slots = new CompletableFuture<?>[threads];
+    for (int t=0; t<threads; t++)
+      slots[t] = driveCars(cr,new SplittableRandom(seed+t));
+
+    reloj.setDaemon(true);
+    reloj.setUncaughtExceptionHandler((th,exc) -> failure.compareAndSet(null,"tick() raised the exception "+exc));
+    reloj.start();
+
+    long deadline = maxSeconds > 0 ? start + maxSeconds*1_000_000_000L : Long.MAX_VALUE;
+    try {
+      CompletableFuture<Void> all = CompletableFuture.allOf(slots);
+      // Stops waiting as soon as a car fails, like the driver threads
+      while (!all.isDone() && failure.get() == null) {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+          failure.compareAndSet(null,"gave up after "+maxSeconds+" seconds");
+          break;
+        }
+        try {
+          all.get(Math.min(WAIT_MILLIS*1_000_000L,left),TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          // Checks the failure and the deadline again
+        }
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      failure.compareAndSet(null,"asynchronous drivers raised the exception "+e);
+    }
+    reloj.detener();
+    long wall = System.nanoTime() - start;
+
+    report(cr,wall);
+    return failure.get() == null;
+  }
+
+  // Takes cars until there are none left. The next car is started from the
+  // common pool so that cars whose futures were already complete do not
+  // nest on the stack
+  CompletableFuture<Void> driveCars(CarreteraAsincrona cr, SplittableRandom rnd) {
+    long car = nextCar.getAndIncrement();
+    if (failure.get() != null || car >= numCars)
+      return CompletableFuture.completedFuture(null);
+    int velocidad = minVelocidad + rnd.nextInt(maxVelocidad-minVelocidad+1);
+    return driveCar(cr,"car"+car,velocidad).thenComposeAsync(ok -> {
+        if (!ok)
+          return CompletableFuture.completedFuture(null);
+        completedTrips.incrementAndGet();
+        return driveCars(cr,rnd);
+      });
+  }
+
+  // The car protocol as a chain of futures: completes with false on failure,
+  // after taking the car off the road if it had entered
+  CompletableFuture<Boolean> driveCar(CarreteraAsincrona cr, String car, int velocidad) {
+    boolean[] entered = new boolean[1];
+    CompletableFuture<Boolean> trip = cr.entrarAsync(car,velocidad)
+      .thenCompose(pos -> {
+          entered[0] = true;
+          return circulate(cr,car,check("entrar",car,velocidad,pos,1));
+        });
+    for (int currX=2; currX<=segmentos; currX++) {
+      int x = currX;
+      trip = trip.thenCompose(ok -> !ok ? CompletableFuture.completedFuture(false)
+                              : cr.avanzarAsync(car,velocidad)
+                              .thenCompose(pos -> circulate(cr,car,check("avanzar",car,velocidad,pos,x))));
+    }
+    return trip.thenCompose(ok -> {
+          if (!ok)
+            return CompletableFuture.completedFuture(false);
+          entered[0] = false;
+          return cr.salirAsync(car).thenApply(v -> true);
+        })
+      .exceptionally(exc -> {
+          failure.compareAndSet(null,"car "+car+" raised the exception "+exc);
+          return false;
+        })
+      .thenCompose(ok -> ok || !entered[0] ? CompletableFuture.completedFuture(ok)
+                   : cr.salirAsync(car).handle((v,exc) -> false));
+  }
+
+  CompletableFuture<Boolean> circulate(CarreteraAsincrona cr, String car, boolean ok) {
+    if (!ok)
+      return CompletableFuture.completedFuture(false);
+    return cr.circulandoAsync(car).thenApply(v -> {
+        carSegments.incrementAndGet();
+        return true;
+      });
+  }
+
+  // The car protocol of Sim, without the GUI: returns false on failure
+  boolean driveCar(Carretera cr, String car, int velocidad) {
+    if (cr instanceof CarreteraIndexada)
+      return driveCar((CarreteraIndexada) cr, car, velocidad);
+    boolean entered = false;
+    try {
+      Pos pos = cr.entrar(car,velocidad);
+      entered = true;
+      if (!check("entrar",car,velocidad,pos,1))
+        return false;
+      cr.circulando(car);
+      carSegments.incrementAndGet();
+      for (int currX=2; currX<=segmentos; currX++) {
+        if (!check("avanzar",car,velocidad,cr.avanzar(car,velocidad),currX))
+          return false;
+        cr.circulando(car);
+        carSegments.incrementAndGet();
+      }
+      entered = false;
+      cr.salir(car);
+      return true;
+    } catch (Throwable exc) {
+      failure.compareAndSet(null,"car "+car+" raised the exception "+exc);
+      return false;
+    } finally {
+      if (entered)
+        leave(() -> cr.salir(car));
+    }
+  }
+
+  // Same protocol through the index based operations: the car is
+  // registered once and no operation looks up its String id
+  boolean driveCar(CarreteraIndexada cr, String car, int velocidad) {
+    int coche = -1;
+    boolean entered = false;
+    try {
+      coche = cr.registrar(car);
+      Pos pos = cr.entrar(coche,velocidad);
+      entered = true;
+      if (!check("entrar",car,velocidad,pos,1))
+        return false;
+      cr.circulando(coche);
+      carSegments.incrementAndGet();
+      for (int currX=2; currX<=segmentos; currX++) {
+        if (!check("avanzar",car,velocidad,cr.avanzar(coche,velocidad),currX))
+          return false;
+        cr.circulando(coche);
+        carSegments.incrementAndGet();
+      }
+      entered = false;
+      cr.salir(coche);
+      cr.desregistrar(coche);
+      return true;
+    } catch (Throwable exc) {
+      failure.compareAndSet(null,"car "+car+" raised the exception "+exc);
+      return false;
+    } finally {
+      if (entered) {
+        int c = coche;
+        leave(() -> {
+            cr.salir(c);
+            cr.desregistrar(c);
+          });
+      }
+    }
+  }
+
+  // Takes a failed car off the road so that its lane does not block the
+  // other cars. Its errors are ignored: the failure is already recorded
+  void leave(Runnable salir) {
+    try {
+      salir.run();
+    } catch (Throwable exc) {
+      // Nothing else to do with a car that cannot leave
+    }
+  }
+
+  boolean check(String name, String car, int velocidad, Pos result, int expectedSegmento) {
+    String problem = CarreteraSim.checkResult(result,expectedSegmento,carriles);
+    if (problem != null) {
+      failure.compareAndSet(null,"The call to "+name+"("+car+","+velocidad+") "+problem);
+      return false;
+    } else return true;
+  }
+
+  void report(Carretera cr, long wallNanos) {
+    double seconds = wallNanos / 1e9;
+    if (failure.get() != null)
+      System.out.println("\n*** Error: "+failure.get());
+    System.out.println("completed trips:  "+completedTrips.get()+" of "+numCars);
+    System.out.println("car-segments:     "+carSegments.get());
+    System.out.println("ticks:            "+reloj.ticks());
+    if (reloj.retrasos() > 0)
+      System.out.printf("late ticks:       %d (max %.1f us late)%n",reloj.retrasos(),reloj.maximoRetraso()/1e3);
+    System.out.printf("wall time:        %.3f s%n",seconds);
+    System.out.printf("throughput:       %.1f car-segments/s (%.1f trips/s)%n",
+                      carSegments.get()/seconds,completedTrips.get()/seconds);
+    if (cr instanceof CarreteraMonitor)
+      System.out.println("lane waits:       "+((CarreteraMonitor) cr).esperas());
+  }
+}
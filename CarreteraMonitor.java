@@ -1,225 +1,635 @@
 package cc.carretera;
 
-import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
 
 import es.upm.babel.cclib.Monitor;
 
 /**
  * Implementación del recurso compartido Carretera con Monitores
  */
-public class CarreteraMonitor implements Carretera {
-  //  La clase Car representa la caracteristicas de un coche
-  //  Dispone de un tks propio y un contador tksConsumido que baja segun va circulando
-  class Car{
-    String id;
-    int tks;
-    Monitor.Cond circulando;
-    Car(String id, int tks, Monitor mutex){
-      this.id = id;
-      this.tks = tks;
-      circulando = mutex.newCond();
-    }
-  }
-  //  Definicion del monitor y las estucturas de datos que gestionan los cond
+public class CarreteraMonitor implements CarreteraIndexada, CarreteraAcelerada, CarreteraAsincrona, CarreteraObservable, CarreteraVigilada {
+  //  Definicion del monitor
   Monitor mutex;
-  //  Representa una estructura de datos de ConditionQueues por cada segemento se podrá 
-  //  bloquear el coche hasta que queden libres los carriles del siguiente segemento
-  private Monitor.Cond [] espera;
-  
+
   //  Definición de la estructura de datos que representa el recurso
-  private Car [][] carretera;
+  //  Por segmento, el coche de cada carril y la cola FIFO de los coches que
+  //  esperan un carril libre en el para entrar (segmento 0) o avanzar. Quien
+  //  libera un carril se lo asigna directamente al primero de la cola, asi que
+  //  un coche espera como mucho a que se liberen tantos carriles del segmento
+  //  como coches tenia delante al llegar. Solo ocupan memoria los segmentos
+  //  con coches, asi que crear una carretera larga no recorre sus segmentos.
+  //  Tambien guarda un unico Pos por carril ocupado, para no crear uno en
+  //  cada avanzar (ver AlmacenSegmentos; CarreteraDirecta lo guarda fuera
+  //  del heap)
+  private AlmacenSegmentos carretera;
   private int segmentos;
   private int carriles;
-  //  Posiciones asocia a un identificador de un coche a una carretera
-  //  A la hora de actualizar velocidades llevar u registro de las posiciones evitara
-  // cosnultas innecesarias
-  private HashMap<String, Pos> posiciones;
-  private int [] carrilesLibres;
-  private PriorityQueue<Car> coches_circulando;
+  //  Segmentos que han liberado un carril mientras tenian coches esperando
+  //  en espera: desbloqueo_avanzar solo mira estos y no toda la carretera
+  //  (al pasar un coche que esperaba al siguiente segmento se libera su carril,
+  //  y su segmento pasa a estar sucio)
+  private ColaEnteros segmentos_sucios;
+
+  //  Los coches se identifican por el indice que les da el registro y sus
+  //  caracteristicas se guardan en arrays indexados por ese indice, de forma
+  //  que las operaciones no tienen que buscar el identificador en un mapa
+  private Registro registro;
+  //  Segmento y carril (desde 0) que ocupa cada coche, -1 si no esta en la carretera
+  private int [] segmento;
+  private int [] carril;
+  //  Tick absoluto (plazo) en el que el coche llega al final de su segmento
+  private long [] plazo;
+  //  El coche esta bloqueado en circulando, y el hilo que lo conduce
+  private boolean [] esperando;
+  private Thread [] hilo;
+  //  O el futuro de circulandoAsync, si el coche no tiene hilo esperando
+  private CompletableFuture<?> [] futuro;
+  //  Turno de cada coche para esperar carril, que se crea al registrarlo
+  private Turno [] turno;
+  //  Tiempos de espera de los coches desbloqueados
+  private Esperas esperas;
+
+  //  Rueda temporal con los coches que aun no han llegado al final de su segmento
+  //  indexados por su plazo: tick solo toca los coches que terminan en ese tick
+  private RuedaTemporal rueda;
+  //  Copia de rueda.ahora() que leen sin cerrojo los coches bloqueados en circulando
+  private volatile long reloj;
+  //  Desbloquea a los coches circulando que terminan en el tick actual
+  private IntConsumer vencido;
+  //  Coches en la carretera (desde entrar hasta salir) y cuantos de ellos
+  //  estan bloqueados en circulando o esperando carril. presentes solo se
+  //  escribe con el cerrojo, pero el reloj lo lee sin el (ver presentes())
+  private volatile int presentes;
+  private int bloqueados;
+  //  Se ejecuta cuando entra un coche con la carretera vacia (ver alOcupar)
+  private volatile Runnable aviso;
+  //  Se ejecuta cuando todos los coches quedan bloqueados (ver alBloquearse)
+  //  y si lo estaban al salir del monitor la ultima vez
+  private volatile Runnable avisoBloqueo;
+  private boolean todosBloqueados;
+  //  Futuros de coches asincronos desbloqueados con el cerrojo tomado, cada uno
+  //  seguido de su valor. Se completan al salir del monitor (ver soltar)
+  private ArrayList<Object> listos;
+  private volatile Executor ejecutor;
+  //  Publicador de los cambios de la carretera, que no cuesta nada sin suscriptores
+  private final DifusorEventos difusor = new DifusorEventos();
 
-  public CarreteraMonitor(int segmentos, int carriles) 
+  public CarreteraMonitor(int segmentos, int carriles)
+  {
+    this(segmentos, carriles, new Segmentos(segmentos, carriles));
+  }
+
+  CarreteraMonitor(int segmentos, int carriles, AlmacenSegmentos carretera)
   {
     this.segmentos = segmentos;
     this.carriles = carriles;;
     mutex = new Monitor();
-    espera = new Monitor.Cond[segmentos];
-    posiciones = new HashMap<String, Pos>();
-    coches_circulando = new PriorityQueue<Car>((a, b) -> a.tks - b.tks);
-    carretera = new Car[segmentos][carriles];
-    carrilesLibres = new int [segmentos];
-    //  Se separa la inicializacion en dos bloques tanto en cuanto la cantidad de 
-    //  Cond es menor que la cantidad de segementos
-    for (int segmento=0; segmento<segmentos; segmento++)
-    {
-      for (int carril=0; carril<carriles; carril++)
-        carretera[segmento][carril] = null;
-      carrilesLibres[segmento] = carriles;
-      espera[segmento] = mutex.newCond();
-    }
+    registro = new Registro();
+    segmento = new int[0];
+    carril = new int[0];
+    plazo = new long[0];
+    esperando = new boolean[0];
+    hilo = new Thread[0];
+    futuro = new CompletableFuture<?>[0];
+    turno = new Turno[0];
+    esperas = new Esperas();
+    listos = new ArrayList<Object>();
+    ejecutor = ForkJoinPool.commonPool();
+    rueda = new RuedaTemporal(256);
+    vencido = coche -> {
+      if (plazo[coche] == rueda.ahora() && esperando[coche])
+      {
+        esperando[coche] = false;
+        bloqueados--;
+        if (futuro[coche] != null)
+        {
+          listos.add(futuro[coche]);
+          listos.add(null);
+          futuro[coche] = null;
+        }
+        else
+        {
+          LockSupport.unpark(hilo[coche]);
+          hilo[coche] = null;
+        }
+      }
+    };
+    this.carretera = carretera;
+    segmentos_sucios = new ColaEnteros();
   }
 
-  public Pos entrar(String id, int tks) {
+  //  Espera de un coche por un carril: quien se lo asigna deja en posicion la
+  //  posicion empaquetada y despues marca listo, o si el coche es asincrono
+  //  completa su futuro
+  private static final class Turno
+  {
+    Thread hilo;
+    CompletableFuture<Pos> futuro;
+    int tks;
+    long desde;
+    int delante;
+    long posicion;
+    Pos pos;
+    volatile boolean listo;
+  }
+
+  public int registrar(String id) {
     mutex.enter();
-    if (carrilesLibres[0] == 0)
-      espera[0].await();
-    Car coche = new Car(id, tks, this.mutex);
-    Pos res = asignar_posicion(0, coche);
-    //desbloqueo_general();
+    int coche = registro.registrar(id);
+    if (coche >= segmento.length)
+      crecer(registro.limite());
     mutex.leave();
-    return res;
+    return coche;
   }
 
-  public Pos avanzar(String id, int tks) {
+  public void desregistrar(int coche) {
     mutex.enter();
-    Pos pos = posiciones.get(id);
-    int segmento = pos.getSegmento() - 1;
-    int carril = pos.getCarril() - 1;
-    if (carrilesLibres[segmento + 1] == 0)
-      espera[segmento + 1].await();
-    Car coche = new Car(id, tks, mutex);
-    Pos asignar = asignar_posicion(segmento + 1, coche);
-    eliminar_posicion(segmento, carril, id);
-    desbloqueo_general();
+    registro.liberar(coche);
     mutex.leave();
-    return asignar;
+  }
+
+  //  Adaptadores de las operaciones con identificador: entrar registra el
+  //  coche y salir lo da de baja
+  public Pos entrar(String id, int tks) {
+    return entrar(registrar(id), tks);
+  }
+
+  public Pos avanzar(String id, int tks) {
+    return avanzar(registro.buscar(id), tks);
+  }
+
+  public void circulando(String id) {
+    circulando(registro.buscar(id));
   }
 
   public void salir(String id) {
+    int coche = registro.buscar(id);
+    salir(coche);
+    desregistrar(coche);
+  }
+
+  /*  Las posiciones internadas (en carretera) solo se consultan con el
+   *  cerrojo tomado: las versiones que devuelven un Pos lo obtienen dentro
+   *  del monitor, o del turno si han esperado carril (quien se lo asigna lo
+   *  deja alli).
+   */
+  public Pos entrar(int coche, int tks) {
+    mutex.enter();
+    ocupar();
+    if (carretera.libres(0) == 0 || carretera.hayEspera(0))
+      return esperar_carril(0, coche, tks).pos;
+    Pos res = carretera.pos(entrar_libre(coche, tks));
+    soltar();
+    return res;
+  }
+
+  public Pos avanzar(int coche, int tks) {
     mutex.enter();
-    Pos posicion = posiciones.get(id);
-    int segmento = posicion.getSegmento() - 1;
-    int carril = posicion.getCarril() - 1;
-    eliminar_posicion(segmento, carril, id);
-    posiciones.remove(id);
+    //  Si ya hay coches esperando en el segmento no se les adelanta
+    if (hay_que_esperar(coche))
+      return esperar_carril(segmento[coche] + 1, coche, tks).pos;
+    Pos res = carretera.pos(avanzar_libre(coche, tks));
+    soltar();
+    return res;
+  }
+
+  public long entrarEmpaquetado(int coche, int tks) {
+    mutex.enter();
+    ocupar();
+    if (carretera.libres(0) == 0 || carretera.hayEspera(0))
+      return esperar_carril(0, coche, tks).posicion;
+    long res = entrar_libre(coche, tks);
+    soltar();
+    return res;
+  }
+
+  public long avanzarEmpaquetado(int coche, int tks) {
+    mutex.enter();
+    if (hay_que_esperar(coche))
+      return esperar_carril(segmento[coche] + 1, coche, tks).posicion;
+    long res = avanzar_libre(coche, tks);
+    soltar();
+    return res;
+  }
+
+  public CompletableFuture<Pos> entrarAsync(String id, int tks) {
+    int coche = registrar(id);
+    mutex.enter();
+    ocupar();
+    if (carretera.libres(0) == 0 || carretera.hayEspera(0))
+      return esperar_carril_async(0, coche, tks);
+    Pos res = carretera.pos(entrar_libre(coche, tks));
+    soltar();
+    return CompletableFuture.completedFuture(res);
+  }
+
+  public CompletableFuture<Pos> avanzarAsync(String id, int tks) {
+    int coche = registro.buscar(id);
+    mutex.enter();
+    if (hay_que_esperar(coche))
+      return esperar_carril_async(segmento[coche] + 1, coche, tks);
+    Pos res = carretera.pos(avanzar_libre(coche, tks));
+    soltar();
+    return CompletableFuture.completedFuture(res);
+  }
+
+  //  Si el coche tiene que esperar carril en el siguiente segmento
+  private boolean hay_que_esperar(int coche)
+  {
+    int siguiente = segmento[coche] + 1;
+    return carretera.libres(siguiente) == 0 || carretera.hayEspera(siguiente);
+  }
+
+  //  Entrar cuando hay un carril libre en el primer segmento
+  private long entrar_libre(int coche, int tks)
+  {
+    long res = asignar_posicion(0, coche);
+    programar(coche, tks);
+    return res;
+  }
+
+  //  Avanzar cuando hay un carril libre en el siguiente segmento
+  private long avanzar_libre(int coche, int tks)
+  {
+    int segmento = this.segmento[coche];
+    int carril = this.carril[coche];
+    long asignar = asignar_posicion(segmento + 1, coche);
+    Traza.evento(Traza.Nivel.DETALLE, "avanzar coche al segmento", coche, segmento + 2);
+    eliminar_posicion(segmento, carril);
+    programar(coche, tks);
     desbloqueo_general();
+    return asignar;
+  }
+
+  /*  Pone el coche al final de la cola del segmento, sale del monitor y espera
+   *  (fuera de el) a que quien libere un carril se lo asigne. Se llama con el
+   *  cerrojo y lo devuelve. Devuelve el turno con la posicion asignada.
+   */
+  private Turno esperar_carril(int segmento, int coche, int tks)
+  {
+    Turno t = encolar(segmento, coche, tks);
+    t.hilo = Thread.currentThread();
+    bloqueo();
     mutex.leave();
+    while (!t.listo)
+      LockSupport.park(this);
+    t.listo = false;
+    return t;
   }
-  
-  /*  */
-  public void circulando(String id) {
-    mutex.enter();
-    int segmento = posiciones.get(id).getSegmento() - 1;
-    int carril = posiciones.get(id).getCarril() - 1;
-    Car coche = carretera[segmento][carril];
-    if (coche.tks > 0)
+
+  //  Como esperar_carril pero sin esperar: el turno guarda el futuro que
+  //  completara quien le asigne el carril
+  private CompletableFuture<Pos> esperar_carril_async(int segmento, int coche, int tks)
+  {
+    Turno t = encolar(segmento, coche, tks);
+    CompletableFuture<Pos> f = new CompletableFuture<Pos>();
+    t.futuro = f;
+    bloqueo();
+    mutex.leave();
+    return f;
+  }
+
+  private Turno encolar(int segmento, int coche, int tks)
+  {
+    Turno t = turno[coche];
+    t.tks = tks;
+    t.desde = System.nanoTime();
+    t.delante = carretera.esperar(segmento, coche);
+    bloqueados++;
+    return t;
+  }
+
+  /*  Sale del monitor. Si la operacion ha desbloqueado a coches asincronos sus
+   *  futuros se completan en el ejecutor, fuera del monitor, para que ni sus
+   *  continuaciones se ejecuten con el cerrojo tomado ni el tick tenga que
+   *  esperarlas.
+   */
+  private void soltar()
+  {
+    bloqueo();
+    if (listos.isEmpty())
     {
-      coches_circulando.add(coche);
-      coche.circulando.await();
+      mutex.leave();
+      return;
     }
-    desbloqueo_general();
+    ArrayList<Object> completar = listos;
+    listos = new ArrayList<Object>();
     mutex.leave();
+    ejecutor.execute(() -> completar(completar));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void completar(ArrayList<Object> listos)
+  {
+    for (int i = 0; i < listos.size(); i += 2)
+      ((CompletableFuture<Object>) listos.get(i)).complete(listos.get(i + 1));
+  }
+
+  public void ejecutor(Executor ejecutor) {
+    this.ejecutor = ejecutor;
+  }
+
+  public DifusorEventos eventos() {
+    return difusor;
+  }
+
+  //  Publica un cambio si hay suscriptores, se llama con el cerrojo
+  private void publicar(EventoCarretera.Tipo tipo, int coche, long posicion)
+  {
+    if (difusor.activo())
+      difusor.publicar(new EventoCarretera(tipo, coche < 0 ? null : registro.id(coche), posicion, rueda.ahora()));
   }
 
-  /*  Tick baja en uno a cada coche en un bucle capturando el cerrojo de manera que
-   *  en el mismo instante todos bajas su tks, en caso de que el tks sea cero se intentaría
-   *  desbloquear el coche si este esta circulando.
+  /**
+   * Devuelve una copia de las estadisticas de espera de los coches que han
+   * esperado carril en entrar o avanzar.
    */
-  public void tick() {
+  public Esperas esperas() {
     mutex.enter();
-    for (String car : posiciones.keySet()) {
-      Pos posicion = posiciones.get(car);
-      int segmento = posicion.getSegmento() - 1;
-      int carril = posicion.getCarril() - 1;
-      Car coche = carretera[segmento][carril];
-      int tks = coche.tks;
-      if (tks > 0)
-        coche.tks--;
-      }
-    desbloqueo_general();
+    Esperas copia = esperas.copia();
     mutex.leave();
+    return copia;
   }
-/* Funcion que administra el desbloqueo*/
-  private void desbloqueo_general()
-  {
-    //desbloqueo_circulando()
-    if (desbloqueo_circulando() == false)
+
+  public void salir(int coche) {
+    mutex.enter();
+    publicar(EventoCarretera.Tipo.SALIR, coche, Pos.empaquetar(segmento[coche] + 1, carril[coche] + 1));
+    eliminar_posicion(segmento[coche], carril[coche]);
+    segmento[coche] = -1;
+    presentes--;
+    desbloqueo_general();
+    soltar();
+  }
+
+  public int presentes() {
+    return presentes;
+  }
+
+  public void alOcupar(Runnable aviso) {
+    this.aviso = aviso;
+  }
+
+  public void alBloquearse(Runnable aviso) {
+    this.avisoBloqueo = aviso;
+  }
+
+  //  Avisa si todos los coches han quedado bloqueados desde la ultima vez
+  //  que se solto el monitor. Se llama con el cerrojo
+  private void bloqueo() {
+    boolean todos = presentes > 0 && bloqueados == presentes;
+    if (todos && !todosBloqueados)
     {
-      desbloqueo_avanzar();
+      Runnable a = avisoBloqueo;
+      if (a != null)
+        a.run();
     }
+    todosBloqueados = todos;
   }
 
-/*
- * Funcion que desbloquea el coche que esta circulando en caso de que su tks sea 0
- * Para ello comprueba en la cola con prioridad si el primer coche
- * tiene tks == 0 extrae el coche de la cola y lo desbloquea
- * En caso de que no haya coches en la cola no se hace nada 
- * Se devuelve false siempe que no se desbloquee ningun coche
-*/
-  private boolean desbloqueo_circulando()
-  {
-    boolean resultado = false;
-    if (!coches_circulando.isEmpty())
+  //  Cuenta un coche que entra y avisa si la carretera estaba vacia. Se
+  //  llama con el cerrojo
+  private void ocupar() {
+    if (presentes++ == 0)
+    {
+      Runnable a = aviso;
+      if (a != null)
+        a.run();
+    }
+  }
+
+  public CompletableFuture<Void> salirAsync(String id) {
+    salir(id);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /*  Un coche que aun no ha llegado al final de su segmento no espera en un Cond
+   *  sino fuera del monitor, hasta que el reloj alcanza su plazo: cuando lo
+   *  desbloquea tick no tiene que volver a entrar en el monitor, asi que todos los
+   *  coches que terminan en el mismo tick continuan a la vez en lugar de uno
+   *  detras de otro pasandose el monitor.
+   */
+  public void circulando(int coche) {
+    mutex.enter();
+    long hasta = plazo[coche];
+    boolean esperar = hasta > rueda.ahora();
+    if (esperar)
+    {
+      esperando[coche] = true;
+      hilo[coche] = Thread.currentThread();
+      bloqueados++;
+    }
+    desbloqueo_general();
+    soltar();
+    while (esperar && reloj < hasta)
+      LockSupport.park(this);
+  }
+
+  public CompletableFuture<Void> circulandoAsync(String id) {
+    int coche = registro.buscar(id);
+    mutex.enter();
+    CompletableFuture<Void> f = null;
+    if (plazo[coche] > rueda.ahora())
+    {
+      f = new CompletableFuture<Void>();
+      esperando[coche] = true;
+      futuro[coche] = f;
+      bloqueados++;
+    }
+    desbloqueo_general();
+    soltar();
+    return f != null ? f : CompletableFuture.completedFuture(null);
+  }
+
+  /*  Tick avanza la rueda temporal capturando el cerrojo de manera que en el mismo
+   *  instante a todos los coches les queda un tick menos. Solo se tocan los coches
+   *  cuyo plazo es este tick; los que estan circulando se desbloquean todos (antes
+   *  de desbloquear a ningun coche que espera para avanzar, como hacia
+   *  desbloqueo_general) y no necesitan el monitor para continuar.
+   */
+  public void tick() {
+    mutex.enter();
+    avanzar_reloj(1);
+    soltar();
+  }
+
+  public void tick(int n) {
+    mutex.enter();
+    if (n > 0)
+      avanzar_reloj(n);
+    soltar();
+  }
+
+  public int avanzarHastaSiguienteEvento() {
+    mutex.enter();
+    int n = 0;
+    if (presentes > 0 && bloqueados == presentes)
     {
-      Car coche = coches_circulando.peek();
-      if (coche.tks == 0)
+      long siguiente = rueda.siguiente();
+      if (siguiente != Long.MAX_VALUE)
       {
-        coche = coches_circulando.poll();
-        // Desbloquea el coche que esta circulando
-        coche.circulando.signal();
-        resultado = true;
+        n = (int) Math.min(Integer.MAX_VALUE, siguiente - rueda.ahora());
+        avanzar_reloj(n);
       }
     }
-    return resultado;
+    soltar();
+    return n;
+  }
+
+  //  Avanza n ticks la rueda, desbloqueando en cada uno a los coches circulando
+  //  que terminan en el, y despues a los que esperan carril
+  private void avanzar_reloj(int n)
+  {
+    //  El reloj se adelanta antes de desbloquear para que ningun coche vuelva a esperar
+    reloj = rueda.ahora() + n;
+    if (n == 1)
+      rueda.tick(vencido);
+    else
+      rueda.tick(n, vencido);
+    Traza.evento(Traza.Nivel.DETALLE, "tick de la carretera", rueda.ahora());
+    publicar(EventoCarretera.Tipo.TICK, -1, 0);
+    print_state();
+    desbloqueo_general();
+  }
+/* Funcion que administra el desbloqueo. Los coches que estan circulando ya los
+ * desbloquea tick en cuanto terminan, asi que solo queda desbloquear a los que
+ * esperan para avanzar o entrar */
+  private void desbloqueo_general()
+  {
+    desbloqueo_avanzar();
+  }
+
+  //  Programa en la rueda el final del segmento del coche si aun no ha llegado
+  private void programar(int coche, int tks)
+  {
+    plazo[coche] = rueda.ahora() + tks;
+    if (tks > 0)
+      rueda.programar(coche, plazo[coche]);
   }
 
   /*
-   * Funcion que desbloquea el coche que quiere avanzar, comprueba si existen procesos
-   * bloqueados en cualquiera de los segmentos empezando por el último segmento
-   * Si se cumple la CPRE adecuada para ello se desbloquea y se se devuelve true
-   * En el otro caso se devuelve false
+   * Funcion que desbloquea los coches que quieren avanzar (o entrar), comprueba solo los
+   * segmentos sucios, que son los unicos que han podido pasar a cumplir la CPRE
+   * En cada uno asigna los carriles libres a los primeros coches de su cola: el coche
+   * pasa al segmento, deja libre su carril anterior (lo que puede ensuciar el segmento
+   * anterior, que se trata en este mismo bucle) y se le despierta con la posicion ya
+   * asignada, de forma que no vuelve a entrar en el monitor
+   * Se devuelve true si se desbloquea algun coche
    */
   private boolean desbloqueo_avanzar()
   {
     boolean resultado = false;
-    for (int segmento = segmentos - 1; segmento >= 0 && !resultado; segmento--)
+    while (!segmentos_sucios.isEmpty())
     {
-      if (espera[segmento].waiting() > 0)
+      int segmento = segmentos_sucios.poll();
+      ColaEnteros cola = carretera.espera(segmento);
+      while (carretera.libres(segmento) > 0 && !cola.isEmpty())
       {
-        if (carrilesLibres[segmento] > 0)
-          espera[segmento].signal();
+        int coche = cola.poll();
+        Turno t = turno[coche];
+        int anterior = this.segmento[coche];
+        int carril = this.carril[coche];
+        t.posicion = asignar_posicion(segmento, coche);
+        t.pos = carretera.pos(t.posicion);
+        programar(coche, t.tks);
+        if (anterior >= 0)
+          eliminar_posicion(anterior, carril);
+        esperas.registrar(System.nanoTime() - t.desde, t.delante);
+        bloqueados--;
+        if (t.futuro != null)
+        {
+          listos.add(t.futuro);
+          listos.add(t.pos);
+          t.futuro = null;
+        }
+        else
+        {
+          Thread h = t.hilo;
+          t.hilo = null;
+          t.listo = true;
+          LockSupport.unpark(h);
+        }
         resultado = true;
       }
+      //  Se limpia al final para que el trozo del segmento no se libere
+      //  mientras se vacia su cola
+      carretera.podarEspera(segmento);
+      carretera.limpiar(segmento);
     }
     return resultado;
   }
 
   //  Funcion que elimina el coche de la posición de manera que todas las estructuras
   //  de datos usadas se actualizan
-  private void eliminar_posicion(int segmento, int carril, String id)
+  private void eliminar_posicion(int segmento, int carril)
   {
-    carretera[segmento][carril] = null;
-    carrilesLibres[segmento] = carrilesLibres[segmento] + 1;
-    //posiciones.remove(id);
+    //  Se ensucia antes de liberar: si el carril era el ultimo ocupado del
+    //  trozo, la cola y la marca lo mantienen
+    if (carretera.hayEspera(segmento) && carretera.ensuciar(segmento))
+      segmentos_sucios.add(segmento);
+    carretera.liberar(segmento, carril);
   }
-  
-  /* Es una función auxiliar que hace mas facil de leer el codigo se devuelve null
+
+  /* Es una función auxiliar que hace mas facil de leer el codigo, devuelve la posicion
+   * empaquetada (ver Pos.empaquetar) y 0
    * en caso de que no se pueda devolver una posicion pero esa parte del codigo deberia no
    * ser alcanzable dado que en caso de no haber ningun carril libre se bloquearia la ejecucion
+   * El carril libre de menor numero se obtiene del mapa de bits del segmento
    */
-  private Pos asignar_posicion(int segmento, Car coche)
+  private long asignar_posicion(int segmento, int coche)
   {
-    Car [] segmento_carretera = carretera[segmento];
-    Pos posicion = null;
-    for (int carril=0; carril<carriles && posicion == null; carril++)
+    long posicion = 0;
+    // Se asigna la posicion de la carretera
+    int carril = carretera.ocupar(segmento, coche);
+    if (carril >= 0)
     {
-      if (segmento_carretera[carril] == null)
-      {
-        // Se asigna la posicion de la carretera
-        segmento_carretera[carril] = coche;
-        // Se actualizan las estructuas de datos que permiten que modelizan el recurso y facilitan la busqueda
-        carrilesLibres[segmento] = carrilesLibres[segmento] - 1;
-        posicion =  new Pos(segmento + 1, carril + 1);
-        posiciones.put(coche.id, posicion);
-      }
+      posicion = Pos.empaquetar(segmento + 1, carril + 1);
+      publicar(this.segmento[coche] < 0 ? EventoCarretera.Tipo.ENTRAR : EventoCarretera.Tipo.AVANZAR, coche, posicion);
+      // Se actualizan las estructuas de datos que permiten que modelizan el recurso y facilitan la busqueda
+      this.segmento[coche] = segmento;
+      this.carril[coche] = carril;
     }
     return posicion;
   }
 
-   void print_state()
-   {
-    for (int i=0; i<segmentos; i++)
-      System.out.println("El valor de carrilesLibres[" + i + "] es = " + carrilesLibres[i]);
-    System.out.println("El valor de posiciones es = " + posiciones.toString());
-   }
+  //  Hace sitio en los arrays de los coches para los indices menores que limite
+  private void crecer(int limite)
+  {
+    int antes = segmento.length;
+    int n = Math.max(limite, Math.max(16, antes * 2));
+    segmento = Arrays.copyOf(segmento, n);
+    carril = Arrays.copyOf(carril, n);
+    plazo = Arrays.copyOf(plazo, n);
+    esperando = Arrays.copyOf(esperando, n);
+    hilo = Arrays.copyOf(hilo, n);
+    futuro = Arrays.copyOf(futuro, n);
+    turno = Arrays.copyOf(turno, n);
+    for (int coche = antes; coche < n; coche++)
+    {
+      segmento[coche] = -1;
+      turno[coche] = new Turno();
+    }
+  }
+
+  //  Vuelca el estado en la traza (nivel ESTADO), se debe llamar con el cerrojo
+  void print_state()
+  {
+    if (!Traza.activa(Traza.Nivel.ESTADO))
+      return;
+    int [] libres = new int[segmentos];
+    for (int segmento=0; segmento<segmentos; segmento++)
+      libres[segmento] = carretera.libres(segmento);
+    Traza.evento(Traza.Nivel.ESTADO, "carriles libres por segmento", Arrays.toString(libres));
+    StringBuilder estado = new StringBuilder("{");
+    for (int coche=0; coche<segmento.length; coche++)
+      if (segmento[coche] >= 0)
+        estado.append(estado.length() > 1 ? ", " : "").append(registro.id(coche))
+          .append('=').append(carretera.pos(segmento[coche], carril[coche]));
+    Traza.evento(Traza.Nivel.ESTADO, "posiciones", estado.append('}').toString());
+  }
 }
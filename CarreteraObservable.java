@@ -0,0 +1,21 @@
+package cc.carretera;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Carretera que publica sus cambios (coches que entran, avanzan y salen, y
+ * ticks) como un flujo reactivo.
+ *
+ * Cada suscriptor pide eventos con request y recibe como mucho los que ha
+ * pedido. Los eventos se entregan en un ejecutor, nunca en el hilo que los
+ * produce, y la carretera no espera nunca a un suscriptor lento: si se le
+ * acumulan demasiados, los siguientes se condensan y solo recibe el ultimo
+ * de cada coche (y el ultimo tick). Sin suscriptores publicar no cuesta
+ * nada. Ver DifusorEventos.
+ */
+public interface CarreteraObservable extends Carretera {
+  /**
+   * Devuelve el publicador de los eventos de la carretera.
+   */
+  Flow.Publisher<EventoCarretera> eventos();
+}
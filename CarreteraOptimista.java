@@ -0,0 +1,799 @@
+package cc.carretera;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulacion de eventos discretos en paralelo y optimista (Time Warp) de
+ * la carretera de CarreteraEventos.
+ *
+ * Los segmentos se reparten en tramos consecutivos, uno por hilo, y cada
+ * tramo es un proceso logico con sus carriles, sus colas de espera y sus
+ * eventos. Un coche que termina el ultimo segmento de un tramo pide carril
+ * al tramo siguiente con un mensaje, y el carril que deja libre se libera
+ * con un mensaje al tramo anterior cuando se lo asignan. Cada tramo procesa
+ * sus eventos sin esperar a los demas: si le llega un mensaje anterior a
+ * los que ya ha procesado, deshace esos eventos (con el registro de las
+ * escrituras que hicieron) y anula los mensajes que enviaron.
+ *
+ * El tiempo virtual de un evento es (tick, coche, fase): los eventos de un
+ * mismo tick se ordenan por coche como en CarreteraEventos, y la fase
+ * ordena la cadena de mensajes que provoca un evento (pedir carril al tramo
+ * siguiente, liberar el anterior, ...), que CarreteraEventos hace de una
+ * vez. Asi el resultado es exactamente el de CarreteraEventos con las
+ * mismas llegadas programadas de antemano. Los coches deben tardar al menos
+ * un tick por segmento, para que los eventos que programa un evento sean
+ * siempre posteriores a el.
+ *
+ * El tiempo virtual global (GVT) se calcula en rondas en las que todos los
+ * hilos se detienen: es el menor de los eventos y mensajes pendientes.
+ * Lo anterior al GVT ya no puede deshacerse, asi que en cada ronda se
+ * entregan sus movimientos al observador y se descarta su registro. Cada
+ * tramo solo adelanta `ventana` ticks al GVT, lo que acota lo que puede
+ * tener que deshacer y la memoria del registro.
+ */
+public class CarreteraOptimista {
+  //  Tipos de evento
+  private static final byte LLEGADA = 0;
+  private static final byte FIN = 1;
+  private static final byte PEDIR = 2;
+  private static final byte LIBERAR = 3;
+  private static final byte ANTI = 4;
+
+  //  Eventos procesados por un hilo entre rondas del GVT
+  private static final int LOTE = 1 << 14;
+
+  private static final long INFINITO = Long.MAX_VALUE;
+
+  private final int segmentos;
+  private final int carriles;
+  private final int hilos;
+  private int ventana = 16;
+  private CarreteraEventos.Observador observador;
+
+  //  Llegadas: el coche i llega en el tick llegadas[i] y tarda
+  //  velocidades[i] ticks por segmento
+  private int[] llegadas = new int[16];
+  private int[] velocidades = new int[16];
+  private int coches;
+
+  private Tramo[] tramos;
+  //  Hilo de cada tramo, para interrumpir a los demas si uno falla
+  private Thread[] hs;
+  private CyclicBarrier parada;
+  private CyclicBarrier calculo;
+  private volatile boolean ronda;
+  private final AtomicInteger ociosos = new AtomicInteger();
+  //  GVT de la ultima ronda
+  private long gvtOrden;
+  private int gvtFase;
+  private volatile Throwable fallo;
+  private long rondas;
+
+  public CarreteraOptimista(int segmentos, int carriles, int hilos) {
+    if (segmentos <= 0 || carriles <= 0) {
+      throw new IllegalArgumentException("una carretera siempre tiene segmentos > 0 y carriles > 0");
+    }
+    if (hilos <= 0) {
+      throw new IllegalArgumentException("hace falta al menos un hilo");
+    }
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+    this.hilos = Math.min(hilos, segmentos);
+  }
+
+  /**
+   * Fija quien recibe los movimientos de los coches (null para ninguno).
+   * Los movimientos se entregan desde los hilos de la simulacion, en orden
+   * dentro de cada tramo pero no entre tramos, asi que el observador debe
+   * ser thread-safe.
+   */
+  public void observador(CarreteraEventos.Observador observador) {
+    this.observador = observador;
+  }
+
+  /**
+   * Fija cuantos ticks puede adelantarse un tramo al GVT.
+   */
+  public void ventana(int ticks) {
+    if (ticks <= 0) {
+      throw new IllegalArgumentException("la ventana debe ser de al menos un tick");
+    }
+    this.ventana = ticks;
+  }
+
+  /**
+   * Programa la llegada de un coche. Las llegadas se programan antes de
+   * simular y en orden de tick.
+   *
+   * @param tick tick de llegada, entre 0 y 2^31 - 1
+   * @param tks ticks que tarda el coche en recorrer un segmento, al menos 1
+   * @return indice del coche
+   */
+  public int llegada(long tick, int tks) {
+    if (tramos != null) {
+      throw new IllegalStateException("la simulacion ya ha empezado");
+    }
+    if (tick < 0 || tick > Integer.MAX_VALUE || (coches > 0 && tick < llegadas[coches - 1])) {
+      throw new IllegalArgumentException("llegada fuera de orden: " + tick);
+    }
+    if (tks < 1) {
+      throw new IllegalArgumentException("un coche siempre tiene tks >= 1");
+    }
+    if (coches == llegadas.length) {
+      llegadas = Arrays.copyOf(llegadas, coches * 2);
+      velocidades = Arrays.copyOf(velocidades, coches * 2);
+    }
+    llegadas[coches] = (int) tick;
+    velocidades[coches] = tks;
+    return coches++;
+  }
+
+  /**
+   * Simula hasta que todos los coches han salido de la carretera.
+   *
+   * @return eventos comprometidos (sin contar los deshechos)
+   */
+  public long simular() throws InterruptedException {
+    if (tramos != null) {
+      throw new IllegalStateException("la simulacion ya ha empezado");
+    }
+    tramos = new Tramo[hilos];
+    for (int i = 0; i < hilos; i++)
+      tramos[i] = new Tramo(i, (int) ((long) i * segmentos / hilos), (int) ((long) (i + 1) * segmentos / hilos));
+    parada = new CyclicBarrier(hilos);
+    calculo = new CyclicBarrier(hilos, this::calcularGVT);
+    gvtOrden = 0;
+    gvtFase = 0;
+    hs = new Thread[hilos];
+    for (int i = 0; i < hilos; i++)
+      hs[i] = new Thread(tramos[i], "optimista-" + i);
+    for (Thread h : hs)
+      h.start();
+    for (Thread h : hs)
+      h.join();
+    if (fallo != null) {
+      throw new IllegalStateException("fallo en la simulacion", fallo);
+    }
+    return comprometidos();
+  }
+
+  /**
+   * Devuelve los eventos comprometidos.
+   */
+  public long comprometidos() {
+    long n = 0;
+    for (Tramo t : tramos)
+      n += t.comprometidos;
+    return n;
+  }
+
+  /**
+   * Devuelve los eventos ejecutados, incluidos los deshechos.
+   */
+  public long ejecutados() {
+    long n = 0;
+    for (Tramo t : tramos)
+      n += t.ejecutados;
+    return n;
+  }
+
+  /**
+   * Devuelve los eventos deshechos.
+   */
+  public long deshechos() {
+    long n = 0;
+    for (Tramo t : tramos)
+      n += t.deshechos;
+    return n;
+  }
+
+  /**
+   * Devuelve las rondas de calculo del GVT.
+   */
+  public long rondas() {
+    return rondas;
+  }
+
+  /**
+   * Devuelve el ultimo tick simulado.
+   */
+  public long ahora() {
+    long n = 0;
+    for (Tramo t : tramos)
+      n = Math.max(n, t.ultimo);
+    return n;
+  }
+
+  //  Accion de la barrera de calculo: todos los hilos estan detenidos y han
+  //  dejado en minimo su evento o mensaje pendiente mas temprano
+  private void calcularGVT() {
+    long orden = INFINITO;
+    int fase = 0;
+    for (Tramo t : tramos) {
+      if (t.minimoOrden < orden || (t.minimoOrden == orden && t.minimoFase < fase)) {
+        orden = t.minimoOrden;
+        fase = t.minimoFase;
+      }
+    }
+    gvtOrden = orden;
+    gvtFase = fase;
+    rondas++;
+    ociosos.set(0);
+    ronda = false;
+  }
+
+  //  Pide una ronda del GVT y despierta a los hilos que esperan mensajes
+  private void pedirRonda() {
+    ronda = true;
+    for (Thread h : hs)
+      LockSupport.unpark(h);
+  }
+
+  /**
+   * Evento o mensaje entre tramos. Los campos finales describen el evento;
+   * el resto los usa el tramo que lo procesa.
+   */
+  private static final class Evento {
+    final byte tipo;
+    final long tick;
+    final int coche;
+    final int fase;
+    //  Tramo destino
+    final int tramo;
+    //  FIN: velocidad, segmento y carril del coche. PEDIR: segmento pedido
+    //  y carril que deja el coche. LIBERAR: coche que deja el carril (en
+    //  tks), segmento y carril a liberar
+    final int tks;
+    final int segmento;
+    final int carril;
+    //  ANTI: mensaje anulado
+    final Evento anulado;
+
+    boolean procesado;
+    boolean anulada;
+    //  Posiciones del registro de escrituras y de movimientos al procesarlo
+    int deshacer;
+    int salida;
+    //  Eventos y mensajes que ha enviado al procesarse, enlazados por hermano
+    Evento hijos;
+    Evento hermano;
+
+    Evento(byte tipo, long tick, int coche, int fase, int tramo, int tks, int segmento, int carril, Evento anulado) {
+      this.tipo = tipo;
+      this.tick = tick;
+      this.coche = coche;
+      this.fase = fase;
+      this.tramo = tramo;
+      this.tks = tks;
+      this.segmento = segmento;
+      this.carril = carril;
+      this.anulado = anulado;
+    }
+
+    long orden() {
+      return (tick << 32) | coche;
+    }
+
+    static int comparar(Evento a, Evento b) {
+      int c = Long.compare(a.orden(), b.orden());
+      return c != 0 ? c : Integer.compare(a.fase, b.fase);
+    }
+  }
+
+  /**
+   * Proceso logico de los segmentos [ini, fin).
+   *
+   * Todo su estado esta en el array mem y se modifica con poner, que
+   * apunta el valor anterior en el registro para poder deshacerlo:
+   * - libres: carriles libres de cada segmento,
+   * - ocupado: el coche que ocupa el carril mas uno (0 si esta libre),
+   * - cabeza, cola: nodos primero y ultimo de la cola de espera de cada
+   *   segmento (0 si esta vacia),
+   * - nodos de 4 enteros (coche, tks, carril que deja, siguiente), con una
+   *   lista de nodos libres y el primer nodo sin usar.
+   */
+  private final class Tramo implements Runnable {
+    final int id;
+    final int ini;
+    final int fin;
+    final int LIBRES;
+    final int OCUPADO;
+    final int CABEZA;
+    final int COLA;
+    final int NODO_LIBRE;
+    final int TOPE;
+
+    int[] mem;
+    //  Registro de escrituras: pares (indice, valor anterior)
+    int[] registro = new int[1024];
+    int escrituras;
+    //  Movimientos pendientes de comprometer
+    int[] salidaCoche = new int[256];
+    long[] salidaTick = new long[256];
+    long[] salidaPosicion = new long[256];
+    int salidas;
+
+    final PriorityQueue<Evento> pendientes = new PriorityQueue<>(Evento::comparar);
+    final ArrayDeque<Evento> procesados = new ArrayDeque<>();
+    final ConcurrentLinkedQueue<Evento> entrada = new ConcurrentLinkedQueue<>();
+    //  Evento en proceso
+    Evento actual;
+    //  Siguiente llegada sin crear (solo el tramo 0)
+    int siguienteLlegada;
+
+    long minimoOrden;
+    int minimoFase;
+    long ejecutados;
+    long deshechos;
+    long comprometidos;
+    long ultimo;
+    int desdeRonda;
+    //  Si el hilo esta (o va a estar) suspendido en esperar: quien le envia
+    //  un mensaje lo despierta
+    volatile boolean dormido;
+
+    Tramo(int id, int ini, int fin) {
+      this.id = id;
+      this.ini = ini;
+      this.fin = fin;
+      int n = fin - ini;
+      LIBRES = 0;
+      OCUPADO = LIBRES + n;
+      CABEZA = OCUPADO + n * carriles;
+      COLA = CABEZA + n;
+      NODO_LIBRE = COLA + n;
+      TOPE = NODO_LIBRE + 1;
+      mem = new int[TOPE + 1 + 4 * 64];
+      Arrays.fill(mem, LIBRES, LIBRES + n, carriles);
+      mem[TOPE] = TOPE + 1;
+    }
+
+    public void run() {
+      try {
+        while (fallo == null) {
+          recibir();
+          if (ronda) {
+            if (!rondaGVT())
+              return;
+            continue;
+          }
+          Evento e = siguiente();
+          if (e == null) {
+            esperar();
+            continue;
+          }
+          ejecutar(e);
+          if (++desdeRonda >= LOTE)
+            pedirRonda();
+        }
+      } catch (BrokenBarrierException | InterruptedException e) {
+        //  Otro hilo ha fallado
+      } catch (Throwable e) {
+        fallo = e;
+        //  Los demas salen de las barreras o de esperar, o no llegan a
+        //  entrar en ellas
+        for (Thread h : hs)
+          if (h != Thread.currentThread())
+            h.interrupt();
+      }
+    }
+
+    //  Sin eventos dentro de la ventana: espera un mensaje, o que todos
+    //  esten ociosos para pedir una ronda que adelante el GVT. Se marca
+    //  dormido antes de mirar la entrada, asi que un mensaje que llega
+    //  despues lo despierta (ver enviar); pedirRonda despierta a todos y
+    //  quien falla los interrumpe
+    void esperar() {
+      ociosos.incrementAndGet();
+      dormido = true;
+      try {
+        while (!ronda && fallo == null) {
+          if (!entrada.isEmpty()) {
+            ociosos.decrementAndGet();
+            return;
+          }
+          if (ociosos.get() == hilos) {
+            pedirRonda();
+            return;
+          }
+          LockSupport.park(this);
+        }
+      } finally {
+        dormido = false;
+      }
+    }
+
+    boolean rondaGVT() throws BrokenBarrierException, InterruptedException {
+      parada.await();
+      //  Nadie envia mensajes hasta la siguiente barrera
+      minimoOrden = INFINITO;
+      minimoFase = 0;
+      Evento p;
+      while ((p = pendientes.peek()) != null && p.anulada)
+        pendientes.poll();
+      if (p != null)
+        minimo(p.orden(), p.fase);
+      for (Evento m : entrada) {
+        Evento k = m.tipo == ANTI ? m.anulado : m;
+        minimo(k.orden(), k.fase);
+      }
+      if (id == 0 && siguienteLlegada < coches)
+        minimo(((long) llegadas[siguienteLlegada] << 32) | siguienteLlegada, 0);
+      calculo.await();
+      fosil(gvtOrden, gvtFase);
+      desdeRonda = 0;
+      return gvtOrden != INFINITO;
+    }
+
+    void minimo(long orden, int fase) {
+      if (orden < minimoOrden || (orden == minimoOrden && fase < minimoFase)) {
+        minimoOrden = orden;
+        minimoFase = fase;
+      }
+    }
+
+    //  Compromete los eventos anteriores al GVT: entrega sus movimientos y
+    //  descarta su registro
+    void fosil(long orden, int fase) {
+      Evento e;
+      while ((e = procesados.peekFirst()) != null
+             && (e.orden() < orden || (e.orden() == orden && e.fase < fase))) {
+        procesados.pollFirst();
+        e.hijos = null;
+        comprometidos++;
+      }
+      int hastaRegistro = e == null ? escrituras : e.deshacer;
+      int hastaSalida = e == null ? salidas : e.salida;
+      if (observador != null)
+        for (int i = 0; i < hastaSalida; i++)
+          observador.mover(salidaCoche[i], salidaTick[i], salidaPosicion[i]);
+      System.arraycopy(registro, hastaRegistro, registro, 0, escrituras - hastaRegistro);
+      escrituras -= hastaRegistro;
+      System.arraycopy(salidaCoche, hastaSalida, salidaCoche, 0, salidas - hastaSalida);
+      System.arraycopy(salidaTick, hastaSalida, salidaTick, 0, salidas - hastaSalida);
+      System.arraycopy(salidaPosicion, hastaSalida, salidaPosicion, 0, salidas - hastaSalida);
+      salidas -= hastaSalida;
+      for (Evento p : procesados) {
+        p.deshacer -= hastaRegistro;
+        p.salida -= hastaSalida;
+      }
+    }
+
+    //  Procesa los mensajes recibidos: un mensaje anterior a lo procesado
+    //  deshace lo posterior, y un antimensaje deshace el mensaje anulado si
+    //  ya se habia procesado
+    void recibir() {
+      Evento m;
+      while ((m = entrada.poll()) != null) {
+        if (m.tipo == ANTI) {
+          Evento a = m.anulado;
+          if (a.procesado)
+            deshacerDesde(a, true);
+          a.anulada = true;
+        } else {
+          Evento u = procesados.peekLast();
+          if (u != null && Evento.comparar(m, u) < 0)
+            deshacerDesde(m, false);
+          pendientes.add(m);
+        }
+      }
+    }
+
+    //  Deshace los eventos procesados posteriores a e (y e si inclusive),
+    //  del ultimo al primero, y los devuelve a pendientes
+    void deshacerDesde(Evento e, boolean inclusive) {
+      Evento u;
+      while ((u = procesados.peekLast()) != null) {
+        int c = Evento.comparar(u, e);
+        if (c < 0 || (c == 0 && !inclusive))
+          break;
+        procesados.pollLast();
+        for (int i = escrituras - 2; i >= u.deshacer; i -= 2)
+          mem[registro[i]] = registro[i + 1];
+        escrituras = u.deshacer;
+        salidas = u.salida;
+        for (Evento h = u.hijos; h != null; h = h.hermano) {
+          if (h.tramo == id)
+            h.anulada = true;
+          else
+            entregar(new Evento(ANTI, h.tick, h.coche, h.fase, h.tramo, 0, 0, 0, h));
+        }
+        u.hijos = null;
+        u.procesado = false;
+        pendientes.add(u);
+        deshechos++;
+      }
+    }
+
+    //  Siguiente evento dentro de la ventana, o null
+    Evento siguiente() {
+      long limite = (gvtOrden >>> 32) + ventana;
+      if (id == 0) {
+        while (siguienteLlegada < coches && llegadas[siguienteLlegada] < limite) {
+          int c = siguienteLlegada++;
+          pendientes.add(new Evento(LLEGADA, llegadas[c], c, 0, 0, velocidades[c], 0, 0, null));
+        }
+      }
+      Evento e;
+      while ((e = pendientes.peek()) != null && e.anulada)
+        pendientes.poll();
+      if (e == null || e.tick >= limite)
+        return null;
+      return pendientes.poll();
+    }
+
+    void ejecutar(Evento e) {
+      e.procesado = true;
+      e.deshacer = escrituras;
+      e.salida = salidas;
+      actual = e;
+      switch (e.tipo) {
+        case LLEGADA:
+          pedir(0, e.coche, e.tks, -1);
+          break;
+        case FIN:
+          if (e.segmento == segmentos - 1) {
+            salida(e.coche, 0);
+            liberar(e.segmento, e.carril, e.coche);
+          } else if (e.segmento + 1 < fin) {
+            if (pedir(e.segmento + 1, e.coche, e.tks, e.carril))
+              liberar(e.segmento, e.carril, e.coche);
+          } else {
+            enviar(PEDIR, id + 1, e.tick, e.tks, e.segmento + 1, e.carril);
+          }
+          break;
+        case PEDIR:
+          if (pedir(e.segmento, e.coche, e.tks, e.carril))
+            enviar(LIBERAR, id - 1, e.tick, e.coche, e.segmento - 1, e.carril);
+          break;
+        case LIBERAR:
+          liberar(e.segmento, e.carril, e.tks);
+          break;
+        default:
+          throw new IllegalStateException("evento desconocido " + e.tipo);
+      }
+      procesados.addLast(e);
+      ejecutados++;
+      ultimo = Math.max(ultimo, e.tick);
+    }
+
+    //  El coche pide carril en el segmento s (dejando el carril dado del
+    //  anterior, -1 si entra): lo ocupa si hay carril libre y nadie
+    //  esperando, o se pone a la cola
+    boolean pedir(int s, int coche, int tks, int carrilAnterior) {
+      int l = s - ini;
+      if (mem[LIBRES + l] > 0 && mem[CABEZA + l] == 0) {
+        asignar(s, coche, tks);
+        return true;
+      }
+      int n = mem[NODO_LIBRE];
+      if (n != 0) {
+        poner(NODO_LIBRE, mem[n + 3]);
+      } else {
+        n = mem[TOPE];
+        if (n + 4 > mem.length)
+          mem = Arrays.copyOf(mem, mem.length * 2);
+        poner(TOPE, n + 4);
+      }
+      poner(n, coche);
+      poner(n + 1, tks);
+      poner(n + 2, carrilAnterior);
+      poner(n + 3, 0);
+      if (mem[CABEZA + l] == 0)
+        poner(CABEZA + l, n);
+      else
+        poner(mem[COLA + l] + 3, n);
+      poner(COLA + l, n);
+      return false;
+    }
+
+    //  Pone el coche en el carril libre de menor numero del segmento y
+    //  programa el final del segmento
+    void asignar(int s, int coche, int tks) {
+      int l = s - ini;
+      int base = OCUPADO + l * carriles;
+      int c = 0;
+      while (mem[base + c] != 0)
+        c++;
+      poner(base + c, coche + 1);
+      poner(LIBRES + l, mem[LIBRES + l] - 1);
+      salida(coche, Pos.empaquetar(s + 1, c + 1));
+      programar(new Evento(FIN, actual.tick + tks, coche, 0, id, tks, s, c, null));
+    }
+
+    //  Libera el carril que deja el coche y se lo asigna al primero de la
+    //  cola del segmento, que libera a su vez su carril en el segmento
+    //  anterior, aqui o con un mensaje al tramo anterior
+    void liberar(int s, int c, int coche) {
+      while (true) {
+        int l = s - ini;
+        //  Un LIBERAR puede llegar despues de que se haya deshecho el evento
+        //  que ocupo el carril y antes del antimensaje que lo anula: el
+        //  carril ya esta libre, o lo ocupa otro coche, y el estado se
+        //  deshara con el antimensaje. Liberarlo dejaria mas carriles libres
+        //  de los que hay o echaria al otro coche
+        if (mem[OCUPADO + l * carriles + c] != coche + 1)
+          return;
+        poner(OCUPADO + l * carriles + c, 0);
+        poner(LIBRES + l, mem[LIBRES + l] + 1);
+        int n = mem[CABEZA + l];
+        if (n == 0)
+          return;
+        coche = mem[n];
+        int tks = mem[n + 1];
+        int anterior = mem[n + 2];
+        poner(CABEZA + l, mem[n + 3]);
+        poner(n + 3, mem[NODO_LIBRE]);
+        poner(NODO_LIBRE, n);
+        asignar(s, coche, tks);
+        if (anterior < 0)
+          return;
+        if (s - 1 < ini) {
+          enviar(LIBERAR, id - 1, actual.tick, coche, s - 1, anterior);
+          return;
+        }
+        s--;
+        c = anterior;
+      }
+    }
+
+    void enviar(byte tipo, int tramo, long tick, int tks, int segmento, int carril) {
+      Evento m = new Evento(tipo, tick, actual.coche, actual.fase + 1, tramo, tks, segmento, carril, null);
+      m.hermano = actual.hijos;
+      actual.hijos = m;
+      entregar(m);
+    }
+
+    //  Pone el mensaje en la entrada de su tramo y lo despierta si espera
+    void entregar(Evento m) {
+      Tramo t = tramos[m.tramo];
+      t.entrada.add(m);
+      if (t.dormido)
+        LockSupport.unpark(hs[m.tramo]);
+    }
+
+    void programar(Evento e) {
+      e.hermano = actual.hijos;
+      actual.hijos = e;
+      pendientes.add(e);
+    }
+
+    void poner(int i, int v) {
+      if (escrituras + 2 > registro.length)
+        registro = Arrays.copyOf(registro, registro.length * 2);
+      registro[escrituras++] = i;
+      registro[escrituras++] = mem[i];
+      mem[i] = v;
+    }
+
+    void salida(int coche, long posicion) {
+      if (salidas == salidaCoche.length) {
+        salidaCoche = Arrays.copyOf(salidaCoche, salidas * 2);
+        salidaTick = Arrays.copyOf(salidaTick, salidas * 2);
+        salidaPosicion = Arrays.copyOf(salidaPosicion, salidas * 2);
+      }
+      salidaCoche[salidas] = coche;
+      salidaTick[salidas] = actual.tick;
+      salidaPosicion[salidas] = posicion;
+      salidas++;
+    }
+  }
+
+  // Simulacion desde la linea de ordenes
+  static void uso() {
+    System.out.println
+      ("Uso: CarreteraOptimista [opciones]\n"
+       +"  --segmentos N      segmentos de la carretera (por defecto 64)\n"
+       +"  --carriles N       carriles por segmento (por defecto 4)\n"
+       +"  --coches N         coches que recorren la carretera (por defecto 100000)\n"
+       +"  --velocidad A[:B]  ticks por segmento, uniforme en [A,B] (por defecto 1:4)\n"
+       +"  --llegadas N       coches que llegan en cada tick (por defecto carriles)\n"
+       +"  --semilla N        semilla de las velocidades (por defecto 42)\n"
+       +"  --hilos N          hilos (tramos) de la simulacion (por defecto los procesadores)\n"
+       +"  --ventana N        ticks que un tramo puede adelantarse al GVT (por defecto 16)\n"
+       +"  --comprobar        compara los movimientos con los de CarreteraEventos");
+  }
+
+  //  Resumen de los movimientos que no depende de su orden
+  static long mezclar(int coche, long tick, long posicion) {
+    long h = (tick * 0x9E3779B97F4A7C15L) ^ (coche * 0xC2B2AE3D27D4EB4FL) ^ posicion;
+    h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L;
+    return h ^ (h >>> 29);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int segmentos = 64;
+    int carriles = 4;
+    int coches = 100_000;
+    int minVelocidad = 1;
+    int maxVelocidad = 4;
+    int llegadas = -1;
+    long semilla = 42;
+    int hilos = Runtime.getRuntime().availableProcessors();
+    int ventana = 16;
+    boolean comprobar = false;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String opt = args[i];
+        if (opt.equals("--comprobar")) {
+          comprobar = true;
+          continue;
+        }
+        if (opt.equals("--help") || opt.equals("-h") || i + 1 >= args.length) {
+          uso();
+          return;
+        }
+        String val = args[++i];
+        switch (opt) {
+          case "--segmentos": segmentos = Integer.parseInt(val); break;
+          case "--carriles": carriles = Integer.parseInt(val); break;
+          case "--coches": coches = Integer.parseInt(val); break;
+          case "--velocidad":
+            int dos = val.indexOf(':');
+            minVelocidad = Integer.parseInt(dos < 0 ? val : val.substring(0, dos));
+            maxVelocidad = dos < 0 ? minVelocidad : Integer.parseInt(val.substring(dos + 1));
+            break;
+          case "--llegadas": llegadas = Integer.parseInt(val); break;
+          case "--semilla": semilla = Long.parseLong(val); break;
+          case "--hilos": hilos = Integer.parseInt(val); break;
+          case "--ventana": ventana = Integer.parseInt(val); break;
+          default: throw new IllegalArgumentException("opcion desconocida " + opt);
+        }
+      }
+      if (minVelocidad < 1 || maxVelocidad < minVelocidad)
+        throw new IllegalArgumentException("velocidad incorrecta " + minVelocidad + ":" + maxVelocidad);
+    } catch (IllegalArgumentException e) {
+      System.out.println("*** Error: " + e.getMessage());
+      uso();
+      System.exit(2);
+    }
+    if (llegadas <= 0)
+      llegadas = carriles;
+
+    CarreteraOptimista cr = new CarreteraOptimista(segmentos, carriles, hilos);
+    cr.ventana(ventana);
+    CarreteraEventos secuencial = comprobar ? new CarreteraEventos(segmentos, carriles) : null;
+    SplittableRandom rnd = new SplittableRandom(semilla);
+    for (int i = 0; i < coches; i++) {
+      long tick = i / llegadas;
+      int tks = minVelocidad + rnd.nextInt(maxVelocidad - minVelocidad + 1);
+      cr.llegada(tick, tks);
+      if (secuencial != null)
+        secuencial.llegada(tick, tks);
+    }
+    LongAdder resumen = new LongAdder();
+    if (comprobar)
+      cr.observador((coche, tick, posicion) -> resumen.add(mezclar(coche, tick, posicion)));
+
+    long inicio = System.nanoTime();
+    long eventos = cr.simular();
+    double segundos = (System.nanoTime() - inicio) / 1e9;
+    System.err.println("coches:           " + coches);
+    System.err.println("tramos:           " + cr.hilos);
+    System.err.println("ticks simulados:  " + cr.ahora());
+    System.err.println("eventos:          " + eventos);
+    System.err.println("ejecutados:       " + cr.ejecutados() + " (" + cr.deshechos() + " deshechos)");
+    System.err.println("rondas GVT:       " + cr.rondas());
+    System.err.printf("tiempo:           %.3f s%n", segundos);
+    System.err.printf("eventos/s:        %.1f%n", eventos / segundos);
+
+    if (secuencial != null) {
+      long[] esperado = new long[1];
+      secuencial.observador((coche, tick, posicion) -> esperado[0] += mezclar(coche, tick, posicion));
+      secuencial.simular(Long.MAX_VALUE);
+      boolean iguales = esperado[0] == resumen.sum() && secuencial.ahora() == cr.ahora();
+      System.err.println("comprobacion:     " + (iguales ? "igual que CarreteraEventos" : "DISTINTO de CarreteraEventos"));
+      if (!iguales)
+        System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package cc.carretera;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.upm.babel.cclib.Monitor;
+
+/**
+ * Implementación del recurso compartido Carretera con un monitor por
+ * segmento. Las operaciones de un coche solo toman los monitores de los
+ * segmentos que toca, de forma que coches en segmentos distintos no
+ * compiten entre si.
+ *
+ * Los carriles se reclaman sin cerrojos sobre una Ocupacion: entrar y
+ * avanzar solo se bloquean si el segmento de destino esta lleno. Los
+ * monitores protegen lo que ven tick y circulando (que coche hay en cada
+ * carril y su plazo), se toman siempre en orden creciente de segmento y
+ * ningun coche espera en un Cond mientras tiene tomado otro monitor.
+ *
+ * tick no recorre la carretera. Cada carril guarda el tick en el que su
+ * coche termina de circular (plazo) y tick solo avanza un reloj comun
+ * (ahora): los ticks que le quedan a un coche son plazo - ahora, asi que
+ * todos bajan en el mismo instante sin tomar ningun monitor. Un coche que
+ * tiene que esperar en circulando apunta su carril en plazos bajo su
+ * plazo, y tick solo toma los monitores de los carriles apuntados para el
+ * tick al que llega: su coste depende de los coches que terminan y no de
+ * los segmentos.
+ */
+public class CarreteraSegmentada implements Carretera {
+  //  La clase Car representa un coche en la carretera. Segmento y carril
+  //  solo los cambia el propio coche (avanzar) con el monitor del segmento
+  //  tomado. Su plazo esta en plazo
+  class Car {
+    String id;
+    int segmento;
+    int carril;
+    Car(String id) {
+      this.id = id;
+    }
+  }
+
+  //  Un monitor por segmento
+  private Monitor [] mutex;
+  //  Un Cond por carril para el coche que circula por el
+  private Monitor.Cond [][] circulando;
+
+  //  Carriles reclamados de cada segmento, sin cerrojos
+  private Ocupacion ocupacion;
+  //  Coche en cada carril, protegido por el monitor del segmento
+  private Car [][] carretera;
+  //  Tick en el que termina de circular el coche de cada carril, en el
+  //  indice segmento * carriles + carril (0 si esta libre). Protegido por
+  //  el monitor del segmento
+  private long [] plazo;
+  //  Ticks dados hasta ahora. Solo lo cambia tick
+  private AtomicLong ahora;
+  //  Carriles con un coche esperando en circulando, por plazo. Puede haber
+  //  entradas viejas (el coche ya se ha ido del carril): tick comprueba el
+  //  plazo del carril antes de despertar a nadie
+  private ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Integer>> plazos;
+  private int segmentos;
+  private int carriles;
+
+  //  Coches en la carretera. Cada coche solo consulta su propia entrada
+  private ConcurrentHashMap<String, Car> coches;
+
+  public CarreteraSegmentada(int segmentos, int carriles)
+  {
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+    mutex = new Monitor[segmentos];
+    circulando = new Monitor.Cond[segmentos][carriles];
+    carretera = new Car[segmentos][carriles];
+    plazo = new long[segmentos * carriles];
+    ahora = new AtomicLong();
+    plazos = new ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Integer>>();
+    ocupacion = new Ocupacion(segmentos, carriles);
+    coches = new ConcurrentHashMap<String, Car>();
+    for (int segmento=0; segmento<segmentos; segmento++)
+    {
+      mutex[segmento] = new Monitor();
+      for (int carril=0; carril<carriles; carril++)
+        circulando[segmento][carril] = mutex[segmento].newCond();
+    }
+  }
+
+  public Pos entrar(String id, int tks) {
+    Car coche = new Car(id);
+    int carril = ocupacion.reclamarOEsperar(0);
+    mutex[0].enter();
+    ocupar_carril(0, carril, coche, tks);
+    coches.put(id, coche);
+    mutex[0].leave();
+    return new Pos(1, coche.carril + 1);
+  }
+
+  /*  avanzar se hace en dos fases. Primero se reclama un carril del
+   *  siguiente segmento sin tomar ningun monitor (esperando si hace falta).
+   *  Despues se toman los dos monitores en orden y se mueve el coche:
+   *  mientras tanto el coche sigue en su carril del segmento actual.
+   */
+  public Pos avanzar(String id, int tks) {
+    Car coche = coches.get(id);
+    int segmento = coche.segmento;
+    int siguiente = segmento + 1;
+    int anterior = coche.carril;
+    int carril = ocupacion.reclamarOEsperar(siguiente);
+
+    mutex[segmento].enter();
+    mutex[siguiente].enter();
+    carretera[segmento][anterior] = null;
+    plazo[segmento * carriles + anterior] = 0;
+    ocupar_carril(siguiente, carril, coche, tks);
+    mutex[siguiente].leave();
+    mutex[segmento].leave();
+    ocupacion.liberar(segmento, anterior);
+    return new Pos(siguiente + 1, coche.carril + 1);
+  }
+
+  public void salir(String id) {
+    Car coche = coches.remove(id);
+    int segmento = coche.segmento;
+    mutex[segmento].enter();
+    carretera[segmento][coche.carril] = null;
+    plazo[segmento * carriles + coche.carril] = 0;
+    mutex[segmento].leave();
+    ocupacion.liberar(segmento, coche.carril);
+  }
+
+  /*  El coche apunta su carril antes de mirar el reloj: si tick llega a su
+   *  plazo despues de apuntarlo, lo encuentra en plazos y espera al monitor
+   *  del segmento hasta que el coche esta en el Cond; si llega antes, el
+   *  coche ve que ya ha terminado y no espera.
+   */
+  public void circulando(String id) {
+    Car coche = coches.get(id);
+    int segmento = coche.segmento;
+    int indice = segmento * carriles + coche.carril;
+    mutex[segmento].enter();
+    long fin = plazo[indice];
+    if (fin > ahora.get()) {
+      plazos.computeIfAbsent(fin, t -> new ConcurrentLinkedQueue<Integer>()).add(indice);
+      if (fin > ahora.get())
+        circulando[segmento][coche.carril].await();
+    }
+    mutex[segmento].leave();
+  }
+
+  /*  tick avanza el reloj, con lo que todos los coches bajan sus ticks a la
+   *  vez, y despierta a los coches apuntados con plazo hasta el nuevo tick,
+   *  tomando solo el monitor del segmento de cada uno.
+   */
+  public void tick() {
+    long t = ahora.incrementAndGet();
+    Map.Entry<Long, ConcurrentLinkedQueue<Integer>> vencidos;
+    while ((vencidos = plazos.firstEntry()) != null && vencidos.getKey() <= t) {
+      plazos.remove(vencidos.getKey(), vencidos.getValue());
+      Integer indice;
+      while ((indice = vencidos.getValue().poll()) != null)
+        despertar(indice, t);
+    }
+  }
+
+  /*  Despierta al coche del carril si ha terminado de circular y esta
+   *  esperando. Una entrada vieja de plazos puede apuntar a un carril que
+   *  ya tiene otro coche con un plazo posterior: ese sigue esperando.
+   */
+  private void despertar(int indice, long t)
+  {
+    int segmento = indice / carriles;
+    int carril = indice % carriles;
+    mutex[segmento].enter();
+    if (carretera[segmento][carril] != null && plazo[indice] <= t && circulando[segmento][carril].waiting() > 0)
+      circulando[segmento][carril].signal();
+    mutex[segmento].leave();
+  }
+
+  //  Coloca el coche en un carril ya reclamado en la ocupacion
+  private void ocupar_carril(int segmento, int carril, Car coche, int tks)
+  {
+    carretera[segmento][carril] = coche;
+    plazo[segmento * carriles + carril] = ahora.get() + tks;
+    coche.segmento = segmento;
+    coche.carril = carril;
+  }
+}
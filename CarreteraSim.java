@@ -40,6 +40,7 @@ import javax.swing.SwingWorker;
 import java.awt.Component;
 import javax.swing.JCheckBox;
 import java.util.function.Supplier;
+import java.util.function.IntSupplier;
 
 
 public class CarreteraSim {
@@ -72,15 +73,23 @@ public class CarreteraSim {
   // Manually step ticks or not
   boolean stepTicks = false;
 
+  // Each tick jumps to the next car that ends its segment or not
+  boolean compressTime = false;
+
   // Current generation -- we keep a count of the number of times
   // the simulation was started to keep from displaying spurious messages
   int generation = 0;
 
 
   /**
-   * Launch the application.
+   * Launch the application. When arguments are given the simulation
+   * is run headless by CarreteraLoad instead (see CarreteraLoad.usage).
    */
   public static void main(String[] args) {
+    if (args.length > 0) {
+      CarreteraLoad.main(args);
+      return;
+    }
     EventQueue.invokeLater(new Runnable() {
         public void run() {
           try {
@@ -116,6 +125,7 @@ public class CarreteraSim {
     // JLabel lblTime = new JLabel("Time:");
     // JLabel timeLab = new JLabel("0"); this.timeLab = timeLab;
     JCheckBox stepTicksBox = new JCheckBox("Step ticks",true);
+    JCheckBox compressTimeBox = new JCheckBox("Compress time",false);
 
     JButton btnDoTimeTick = new JButton("Tick");
     btnDoTimeTick.addActionListener(new ActionListener() {
@@ -202,6 +212,7 @@ public class CarreteraSim {
           // timeLab.setText(Integer.valueOf(time).toString());
           sim = new Sim(win,rnd,generation,tickQueue,segmentos,carriles);
           stepTicks = stepTicksBox.isSelected();
+          compressTime = compressTimeBox.isSelected();
           btnDoTimeTick.setEnabled(stepTicks);
           btnPauseSim.setEnabled(!stepTicks);
           btnPauseSim.setText("Pause simulation");
@@ -296,6 +307,7 @@ public class CarreteraSim {
        //.addPreferredGap(ComponentPlacement.UNRELATED)
        .addGap(150)
        .addComponent(stepTicksBox)
+       .addComponent(compressTimeBox)
        );
     gl_panel_options.setVerticalGroup
       (
@@ -303,6 +315,7 @@ public class CarreteraSim {
        //.addComponent(lblTime)
        //.addComponent(timeLab)
        .addComponent(stepTicksBox)
+       .addComponent(compressTimeBox)
        );
     panel_options.setLayout(gl_panel_options);
 
@@ -359,6 +372,21 @@ public class CarreteraSim {
 
     frmCarreterasim.getContentPane().setLayout(gl_top);
   }
+
+  // Checks the position returned by entrar/avanzar. Returns null if the
+  // position is fine, or a description of the problem otherwise.
+  // Shared with the headless load driver (CarreteraLoad).
+  static String checkResult(Pos result, int expectedSegmento, int carriles) {
+    if (result == null) {
+      return "returned a NULL value";
+    } else if (result.getSegmento() != expectedSegmento) {
+      return "returned a segmento "+
+        result.getSegmento()+" != expected value "+expectedSegmento;
+    } else  if (result.getCarril() < 1 || result.getCarril() > carriles) {
+      return "returned a carril "+
+        result.getCarril()+" < 1 or > the number of carriles = "+carriles;
+    } else return null;
+  }
 }
 
 
@@ -493,7 +521,7 @@ class Sim extends SwingWorker<Void,Object> {
               for (int segmento=0; segmento<segmentos; segmento++)
                 for (int carril=0; carril<carriles; carril++) {
                   if (cs.tks[segmento][carril] > 0) {
-                    --cs.tks[segmento][carril];
+                    cs.tks[segmento][carril] = Math.max(0,cs.tks[segmento][carril]-call.ticks);
                     JLabel lbl = cs.carretera[segmento][carril];
                     lbl.setText(cs.cars[segmento][carril]+"@"+Integer.valueOf(cs.tks[segmento][carril]));
                   }
@@ -514,6 +542,7 @@ class Sim extends SwingWorker<Void,Object> {
   @Override
   protected Void doInBackground() throws Exception {
     boolean stepTicks = cs.stepTicks;
+    boolean compressTime = cs.compressTime;
     AtomicBoolean terminated = new AtomicBoolean(false);
 
     // Shuffle cars
@@ -564,43 +593,42 @@ class Sim extends SwingWorker<Void,Object> {
       int velocidad = velocidades.get(car);
 
       // One thread per car executes the car protocol (entrar, circulando, [avanzar, circulando]*, salir)
-      Thread carTh = new Thread(car) {
-          public void run() {
-            Pos result = null;
-            int currX = 1;
-
-            // Do the car process
-            if (!terminated.get()) {
-              terminated.compareAndSet
-                (false,!doResultCall(() -> { return cr.entrar(car,velocidad); }, SimCall.entrar(time,car,velocidad), currX, carriles));
-            }
+      // (on a virtual thread when selected with -Dcarretera.hilos=virtual, see Hilos)
+      Thread carTh = Hilos.nuevo(car, () -> {
+        Pos result = null;
+        int currX = 1;
+
+        // Do the car process
+        if (!terminated.get()) {
+          terminated.compareAndSet
+            (false,!doResultCall(() -> { return cr.entrar(car,velocidad); }, SimCall.entrar(time,car,velocidad), currX, carriles));
+        }
 
-            if (!terminated.get()) {
-              terminated.compareAndSet
-                (false,!doCall(() -> { cr.circulando(car); }, SimCall.circulando(time,car)));
-            }
+        if (!terminated.get()) {
+          terminated.compareAndSet
+            (false,!doCall(() -> { cr.circulando(car); }, SimCall.circulando(time,car)));
+        }
 
-            while (!terminated.get() && currX < segmentos) {
+        while (!terminated.get() && currX < segmentos) {
 
-              if (!terminated.get()) {
-                terminated.compareAndSet
-                  (false,!doResultCall(() -> { return cr.avanzar(car,velocidad); }, SimCall.avanzar(time,car,velocidad), ++currX, carriles));
-              }
+          if (!terminated.get()) {
+            terminated.compareAndSet
+              (false,!doResultCall(() -> { return cr.avanzar(car,velocidad); }, SimCall.avanzar(time,car,velocidad), ++currX, carriles));
+          }
 
-              if (!terminated.get()) {
-                terminated.compareAndSet
-                  (false,!doCall(() -> { cr.circulando(car); }, SimCall.circulando(time,car)));
-              }
-            }
+          if (!terminated.get()) {
+            terminated.compareAndSet
+              (false,!doCall(() -> { cr.circulando(car); }, SimCall.circulando(time,car)));
+          }
+        }
 
-            if (!terminated.get()) {
-              terminated.compareAndSet
-                (false,!doCall(() -> { cr.salir(car); }, SimCall.salir(time,car)));
-            }
+        if (!terminated.get()) {
+          terminated.compareAndSet
+            (false,!doCall(() -> { cr.salir(car); }, SimCall.salir(time,car)));
+        }
 
-            carsToExit.decrementAndGet();
-          }
-        };
+        carsToExit.decrementAndGet();
+      });
       carTh.start();
     }
 
@@ -639,7 +667,22 @@ class Sim extends SwingWorker<Void,Object> {
             }
 
             if (!terminated.get()) {
-              terminated.compareAndSet(false,!doCall(() -> { cr.tick(); ++time; }, SimCall.tick(time)));
+              // With compressed time the tick jumps to the next car that ends its
+              // segment, or is a normal tick if some car is not blocked yet
+              if (compressTime && cr instanceof CarreteraAcelerada) {
+                CarreteraAcelerada ca = (CarreteraAcelerada) cr;
+                terminated.compareAndSet(false,!doTickCall(() -> {
+                      int n = ca.avanzarHastaSiguienteEvento();
+                      if (n == 0) {
+                        ca.tick();
+                        n = 1;
+                      }
+                      time += n;
+                      return n;
+                    }, SimCall.tick(time)));
+              } else {
+                terminated.compareAndSet(false,!doCall(() -> { cr.tick(); ++time; }, SimCall.tick(time)));
+              }
             }
           } while (!terminated.get() && carsToExit.get() > 0);
         }
@@ -677,6 +720,29 @@ class Sim extends SwingWorker<Void,Object> {
     return callResult;
   }
 
+  // Like doCall for a tick that returns how many ticks it applied
+  boolean doTickCall(IntSupplier callCode, SimCall oldCall) {
+    sendCallToGUI(oldCall);
+    SimCall call = new SimCall(oldCall);
+    boolean callResult = true;
+
+    try {
+      call.ticks = callCode.getAsInt();
+    } catch (Throwable exc) {
+      call.raisedException = true;
+      call.exception = exc;
+      callResult = false;
+    };
+
+    if (callResult) {
+      call.returnTime = time;
+      call.returned();
+    }
+
+    sendCallToGUI(call);
+    return callResult;
+  }
+
   boolean doResultCall(Supplier<Pos> callCode, SimCall oldCall, int expectedSegmento, int carriles) {
     sendCallToGUI(oldCall);
     SimCall call = new SimCall(oldCall);
@@ -702,24 +768,10 @@ class Sim extends SwingWorker<Void,Object> {
   }
 
   private boolean checkCall(SimCall call, int expectedSegmento, int carriles) {
-    Pos result = call.result;
-
-    if (result == null) {
-      call.failed = true;
-      call.failMessage =
-        "The call to "+call.getCallString()+" returned a NULL value";
-      return false;
-    } else if (result.getSegmento() != expectedSegmento) {
+    String problem = CarreteraSim.checkResult(call.result, expectedSegmento, carriles);
+    if (problem != null) {
       call.failed = true;
-      call.failMessage =
-        "The call to "+call.getCallString()+" returned a segmento "+
-        result.getSegmento()+" != expected value "+expectedSegmento;
-      return false;
-    } else  if (result.getCarril() < 1 || result.getCarril() > carriles) {
-      call.failed = true;
-      call.failMessage =
-        "The call to "+call.getCallString()+" returned a carril "+
-        result.getCarril()+" < 1 or > the number of carriles = "+carriles;
+      call.failMessage = "The call to "+call.getCallString()+" "+problem;
       return false;
     } else return true;
   }
@@ -751,6 +803,8 @@ class SimCall {
   String failMessage=null;
   boolean raisedException=false;
   Throwable exception;
+  // Ticks applied by a tick call (more than one with compressed time)
+  int ticks = 1;
 
   SimCall(int time, String name) { this.time = time; this.name = name; this.returned = false; }
 
@@ -766,6 +820,7 @@ class SimCall {
     this.failMessage = call.failMessage;
     this.raisedException = call.raisedException;
     this.exception = call.exception;
+    this.ticks = call.ticks;
   }
 
   static SimCall entrar(int time, String car, int velocidad) {
@@ -801,6 +856,7 @@ class SimCall {
     String str = name+"(";
     if (car != null) str +=car;
     if (velocidad != null) str +=","+velocidad;
+    if (ticks != 1) str +=ticks;
     str += ")";
     return str;
   }
@@ -0,0 +1,23 @@
+package cc.carretera;
+
+/**
+ * Carretera que cuenta los coches que tiene y avisa cuando entra uno
+ * estando vacia, para que un reloj (ver Reloj) se suspenda mientras no hay
+ * coches sin que los coches tengan que usar otra carretera.
+ */
+public interface CarreteraVigilada extends Carretera {
+  /**
+   * Devuelve cuantos coches hay en la carretera, contando desde que llaman
+   * a entrar (aunque aun esperen carril) hasta que salen.
+   */
+  int presentes();
+
+  /**
+   * Fija la accion que se ejecuta cada vez que entra un coche con la
+   * carretera vacia, despues de contarlo en presentes(). Se ejecuta en el
+   * hilo de la carretera que atiende a entrar, asi que no debe bloquearse.
+   *
+   * @param aviso la accion, o null para no avisar
+   */
+  void alOcupar(Runnable aviso);
+}
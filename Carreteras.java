@@ -0,0 +1,73 @@
+package cc.carretera;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registro de las implementaciones de Carretera disponibles. Permite
+ * crear una carretera a partir de un nombre corto ("monitor", "csp")
+ * o del nombre completo de cualquier clase que implemente Carretera y
+ * tenga un constructor (int segmentos, int carriles).
+ */
+public final class Carreteras {
+  //  Nombre corto -> clase de la implementacion, en orden de registro
+  private static final Map<String, Class<? extends Carretera>> implementaciones =
+    new LinkedHashMap<String, Class<? extends Carretera>>();
+
+  static {
+    implementaciones.put("monitor", CarreteraMonitor.class);
+    implementaciones.put("csp", CarreteraCSP.class);
+    implementaciones.put("csp-lotes", CarreteraCSP.Lotes.class);
+    implementaciones.put("csp-tramos", CarreteraCSPFragmentada.class);
+    implementaciones.put("segmentada", CarreteraSegmentada.class);
+    implementaciones.put("directa", CarreteraDirecta.class);
+  }
+
+  private Carreteras() { }
+
+  /**
+   * Devuelve los nombres cortos de todas las implementaciones registradas.
+   */
+  public static List<String> nombres() {
+    return new ArrayList<String>(implementaciones.keySet());
+  }
+
+  /**
+   * Crea una carretera de la implementacion indicada.
+   *
+   * @param nombre nombre corto registrado o nombre completo de la clase
+   * @param segmentos numero de segmentos de la carretera
+   * @param carriles numero de carriles de cada segmento
+   */
+  public static Carretera crear(String nombre, int segmentos, int carriles) {
+    Class<? extends Carretera> clase = clase(nombre);
+    try {
+      Constructor<? extends Carretera> cons = clase.getConstructor(int.class, int.class);
+      return cons.newInstance(segmentos, carriles);
+    } catch (InvocationTargetException e) {
+      Throwable causa = e.getCause();
+      if (causa instanceof RuntimeException)
+        throw (RuntimeException) causa;
+      throw new IllegalStateException("no se pudo crear " + nombre, causa);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException(clase.getName() + " no tiene un constructor (int, int) publico", e);
+    }
+  }
+
+  //  Resuelve un nombre corto o un nombre de clase
+  private static Class<? extends Carretera> clase(String nombre) {
+    Class<? extends Carretera> clase = implementaciones.get(nombre);
+    if (clase != null)
+      return clase;
+    try {
+      return Class.forName(nombre).asSubclass(Carretera.class);
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IllegalArgumentException("implementacion de Carretera desconocida: " + nombre
+                                         + " (registradas: " + implementaciones.keySet() + ")", e);
+    }
+  }
+}
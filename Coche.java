@@ -16,7 +16,22 @@ public class Coche extends Thread {
     this.tks = tks;
   }
 
+  /**
+   * Ejecuta el protocolo del coche en un hilo creado con Hilos (virtual
+   * si asi se ha elegido) en lugar de en un Coche.
+   */
+  public static Thread arrancar(Carretera cr,
+                                String id,
+                                int segmentos,
+                                int tks) {
+    return Hilos.arrancar(id, () -> recorrido(cr, id, segmentos, tks));
+  }
+
   public void run() {
+    recorrido(cr, id, segmentos, tks);
+  }
+
+  static void recorrido(Carretera cr, String id, int segmentos, int tks) {
     cr.entrar(id, tks);
     cr.circulando(id);
     for (int i = 0; i < segmentos; i++) {
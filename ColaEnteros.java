@@ -0,0 +1,77 @@
+package cc.carretera;
+
+import java.util.Arrays;
+
+/**
+ * Cola FIFO de enteros sobre un array circular que solo crece. Sirve para
+ * encolar indices de coches sin reservar un Integer por cada uno.
+ */
+public class ColaEnteros {
+  private int[] elementos;
+  private int primero;
+  private int tamano;
+
+  public ColaEnteros() {
+    this(16);
+  }
+
+  public ColaEnteros(int capacidad) {
+    elementos = new int[Math.max(2, capacidad)];
+  }
+
+  public boolean isEmpty() {
+    return tamano == 0;
+  }
+
+  public int size() {
+    return tamano;
+  }
+
+  /**
+   * Añade un elemento al final de la cola.
+   */
+  public void add(int elemento) {
+    if (tamano == elementos.length) {
+      int[] nuevos = new int[elementos.length * 2];
+      int cola = elementos.length - primero;
+      System.arraycopy(elementos, primero, nuevos, 0, cola);
+      System.arraycopy(elementos, 0, nuevos, cola, primero);
+      elementos = nuevos;
+      primero = 0;
+    }
+    elementos[(primero + tamano) % elementos.length] = elemento;
+    tamano++;
+  }
+
+  /**
+   * Devuelve el primer elemento sin quitarlo.
+   */
+  public int peek() {
+    if (tamano == 0) {
+      throw new IllegalStateException("la cola esta vacia");
+    }
+    return elementos[primero];
+  }
+
+  /**
+   * Quita y devuelve el primer elemento.
+   */
+  public int poll() {
+    int elemento = peek();
+    primero = (primero + 1) % elementos.length;
+    tamano--;
+    return elemento;
+  }
+
+  public void clear() {
+    primero = 0;
+    tamano = 0;
+  }
+
+  public String toString() {
+    int[] copia = new int[tamano];
+    for (int i = 0; i < tamano; i++)
+      copia[i] = elementos[(primero + i) % elementos.length];
+    return Arrays.toString(copia);
+  }
+}
@@ -0,0 +1,87 @@
+package cc.carretera;
+
+import java.util.Arrays;
+
+/**
+ * Cola de prioridad (monticulo binario) de eventos: cada evento es un tick
+ * y un elemento entero (p.ej. el indice de un coche), empaquetados en un
+ * long, asi que encolar y desencolar no reservan memoria una vez que el
+ * array ha crecido. Los eventos salen por tick y, a igual tick, por
+ * elemento.
+ */
+public class ColaEventos {
+  private long[] eventos = new long[16];
+  private int n;
+
+  /**
+   * Devuelve si no hay eventos.
+   */
+  public boolean isEmpty() {
+    return n == 0;
+  }
+
+  /**
+   * Devuelve el numero de eventos.
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * Encola un evento.
+   *
+   * @param tick tick del evento, entre 0 y 2^31 - 1 ticks
+   * @param elemento elemento del evento, no negativo
+   */
+  public void add(long tick, int elemento) {
+    if (tick < 0 || tick > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("tick fuera de rango: " + tick);
+    }
+    if (n == eventos.length)
+      eventos = Arrays.copyOf(eventos, n * 2);
+    long e = (tick << 32) | (elemento & 0xFFFFFFFFL);
+    int i = n++;
+    while (i > 0) {
+      int padre = (i - 1) >>> 1;
+      if (eventos[padre] <= e)
+        break;
+      eventos[i] = eventos[padre];
+      i = padre;
+    }
+    eventos[i] = e;
+  }
+
+  /**
+   * Devuelve el tick del primer evento, que debe existir.
+   */
+  public long tick() {
+    return eventos[0] >>> 32;
+  }
+
+  /**
+   * Devuelve el elemento del primer evento, que debe existir.
+   */
+  public int elemento() {
+    return (int) eventos[0];
+  }
+
+  /**
+   * Quita el primer evento, que debe existir.
+   */
+  public void poll() {
+    long ultimo = eventos[--n];
+    int i = 0;
+    while (true) {
+      int hijo = 2 * i + 1;
+      if (hijo >= n)
+        break;
+      if (hijo + 1 < n && eventos[hijo + 1] < eventos[hijo])
+        hijo++;
+      if (ultimo <= eventos[hijo])
+        break;
+      eventos[i] = eventos[hijo];
+      i = hijo;
+    }
+    eventos[i] = ultimo;
+  }
+}
@@ -0,0 +1,253 @@
+package cc.carretera;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publicador de los eventos de una carretera con contrapresion y
+ * condensacion por suscriptor.
+ *
+ * La carretera llama a publicar con su cerrojo tomado (o desde el hilo del
+ * servidor), asi que publicar nunca espera: deja el evento en la cola de
+ * cada suscriptor y, si el suscriptor tiene demanda, programa la entrega en
+ * el ejecutor. Cada suscriptor recibe los eventos en orden y de uno en uno,
+ * como mucho tantos como ha pedido con request.
+ *
+ * La cola de cada suscriptor admite capacidad eventos. Cuando se llena, los
+ * eventos siguientes se condensan: solo se guarda el ultimo de cada coche y
+ * el ultimo tick, que se entregan despues de los de la cola. Un suscriptor
+ * lento ve asi el estado mas reciente de cada coche en lugar de todos sus
+ * movimientos, y la memoria que ocupa esta acotada por la capacidad mas el
+ * numero de coches en la carretera: un coche que entra y sale mientras se
+ * condensa no se entrega.
+ *
+ * Mientras no hay suscriptores activo() es false y la carretera no crea los
+ * eventos: solo cuesta leer una variable volatile.
+ */
+public class DifusorEventos implements Flow.Publisher<EventoCarretera> {
+  /**
+   * Eventos que se guardan por suscriptor antes de condensar.
+   */
+  public static final int CAPACIDAD_POR_DEFECTO = 1024;
+
+  //  Eventos que se entregan seguidos antes de devolver el hilo al ejecutor
+  private static final int LOTE = 256;
+  //  Clave de los ticks al condensar
+  private static final Object TICK = new Object();
+  private static final Suscripcion[] NINGUNA = new Suscripcion[0];
+
+  private final int capacidad;
+  private volatile Executor ejecutor = ForkJoinPool.commonPool();
+  //  Se copia al suscribir o cancelar, para que publicar no tome cerrojos
+  private volatile Suscripcion[] suscripciones = NINGUNA;
+  private final LongAdder condensados = new LongAdder();
+
+  public DifusorEventos() {
+    this(CAPACIDAD_POR_DEFECTO);
+  }
+
+  /**
+   * @param capacidad eventos que se guardan por suscriptor antes de
+   *   condensar, capacidad > 0
+   */
+  public DifusorEventos(int capacidad) {
+    if (capacidad <= 0) {
+      throw new IllegalArgumentException("la capacidad siempre es > 0");
+    }
+    this.capacidad = capacidad;
+  }
+
+  /**
+   * Fija el ejecutor en el que se entregan los eventos. Por defecto es
+   * ForkJoinPool.commonPool().
+   */
+  public void ejecutor(Executor ejecutor) {
+    this.ejecutor = Objects.requireNonNull(ejecutor);
+  }
+
+  /**
+   * Devuelve si hay algun suscriptor, es decir, si hace falta crear los
+   * eventos.
+   */
+  public boolean activo() {
+    return suscripciones.length > 0;
+  }
+
+  /**
+   * Devuelve cuantos eventos se han condensado, en todos los suscriptores.
+   */
+  public long condensados() {
+    return condensados.sum();
+  }
+
+  /**
+   * Publica un evento a todos los suscriptores sin esperar a ninguno.
+   */
+  public void publicar(EventoCarretera evento) {
+    for (Suscripcion s : suscripciones)
+      s.ofrecer(evento);
+  }
+
+  public void subscribe(Flow.Subscriber<? super EventoCarretera> suscriptor) {
+    Suscripcion s = new Suscripcion(Objects.requireNonNull(suscriptor));
+    synchronized (this) {
+      Suscripcion[] antes = suscripciones;
+      Suscripcion[] nuevas = new Suscripcion[antes.length + 1];
+      System.arraycopy(antes, 0, nuevas, 0, antes.length);
+      nuevas[antes.length] = s;
+      suscripciones = nuevas;
+    }
+    //  Los eventos publicados hasta que pida alguno se quedan en su cola
+    suscriptor.onSubscribe(s);
+  }
+
+  private synchronized void quitar(Suscripcion s) {
+    Suscripcion[] antes = suscripciones;
+    for (int i = 0; i < antes.length; i++) {
+      if (antes[i] == s) {
+        Suscripcion[] nuevas = new Suscripcion[antes.length - 1];
+        System.arraycopy(antes, 0, nuevas, 0, i);
+        System.arraycopy(antes, i + 1, nuevas, i, antes.length - i - 1);
+        suscripciones = nuevas;
+        return;
+      }
+    }
+  }
+
+  //  Cola, demanda y entrega de un suscriptor. El cerrojo de la suscripcion
+  //  solo protege su estado: onNext se llama sin el, asi que un suscriptor
+  //  lento no retrasa a publicar
+  private final class Suscripcion implements Flow.Subscription, Runnable {
+    private final Flow.Subscriber<? super EventoCarretera> suscriptor;
+    private final ArrayDeque<EventoCarretera> cola = new ArrayDeque<EventoCarretera>();
+    //  Ultimo evento de cada coche (y ultimo tick) desde que se lleno la
+    //  cola. Mientras no este vacio todo evento nuevo se condensa, para que
+    //  los de un coche no se adelanten a los anteriores
+    private final LinkedHashMap<Object, EventoCarretera> ultimos = new LinkedHashMap<Object, EventoCarretera>();
+    private long demanda;
+    private boolean programada;
+    private boolean cancelada;
+    //  request con n <= 0: se entrega onError en lugar de mas eventos
+    private boolean error;
+
+    Suscripcion(Flow.Subscriber<? super EventoCarretera> suscriptor) {
+      this.suscriptor = suscriptor;
+    }
+
+    synchronized void ofrecer(EventoCarretera evento) {
+      if (cancelada)
+        return;
+      if (ultimos.isEmpty() && cola.size() < capacidad) {
+        cola.add(evento);
+      } else {
+        condensar(evento);
+        condensados.increment();
+      }
+      programar();
+    }
+
+    //  Guarda el evento como el ultimo de su coche. Si el suscriptor aun no
+    //  ha visto entrar al coche (su ENTRAR tambien se condenso), un AVANZAR
+    //  se guarda como ENTRAR en la nueva posicion y un SALIR quita al coche
+    //  sin guardar nada, de forma que ultimos no guarda mas que los coches
+    //  en la carretera y los SALIR de coches que el suscriptor conoce. Se
+    //  llama con el cerrojo
+    private void condensar(EventoCarretera evento) {
+      if (evento.getTipo() == EventoCarretera.Tipo.TICK) {
+        ultimos.put(TICK, evento);
+        return;
+      }
+      EventoCarretera anterior = ultimos.get(evento.getId());
+      if (anterior == null || anterior.getTipo() != EventoCarretera.Tipo.ENTRAR) {
+        ultimos.put(evento.getId(), evento);
+      } else if (evento.getTipo() == EventoCarretera.Tipo.AVANZAR) {
+        ultimos.put(evento.getId(), new EventoCarretera(EventoCarretera.Tipo.ENTRAR, evento.getId(), evento.getPosicion(), evento.getTick()));
+      } else if (evento.getTipo() == EventoCarretera.Tipo.SALIR) {
+        ultimos.remove(evento.getId());
+      } else {
+        ultimos.put(evento.getId(), evento);
+      }
+    }
+
+    public void request(long n) {
+      synchronized (this) {
+        if (cancelada)
+          return;
+        if (n <= 0)
+          error = true;
+        else
+          demanda = demanda + n < 0 ? Long.MAX_VALUE : demanda + n;
+        programar();
+      }
+    }
+
+    public void cancel() {
+      synchronized (this) {
+        if (cancelada)
+          return;
+        cancelada = true;
+        cola.clear();
+        ultimos.clear();
+      }
+      quitar(this);
+    }
+
+    //  Programa la entrega si hay algo que entregar y no esta ya programada.
+    //  Se llama con el cerrojo
+    private void programar() {
+      if (!programada && (error || (demanda > 0 && (!cola.isEmpty() || !ultimos.isEmpty())))) {
+        programada = true;
+        ejecutor.execute(this);
+      }
+    }
+
+    //  Entrega como mucho LOTE eventos y, si quedan, vuelve a programarse
+    public void run() {
+      for (int i = 0; i < LOTE; i++) {
+        EventoCarretera evento;
+        synchronized (this) {
+          if (cancelada) {
+            programada = false;
+            return;
+          }
+          if (error) {
+            evento = null;
+          } else if (demanda > 0 && !cola.isEmpty()) {
+            evento = cola.poll();
+            demanda--;
+          } else if (demanda > 0 && !ultimos.isEmpty()) {
+            Iterator<EventoCarretera> it = ultimos.values().iterator();
+            evento = it.next();
+            it.remove();
+            demanda--;
+          } else {
+            programada = false;
+            return;
+          }
+        }
+        if (evento == null) {
+          cancel();
+          suscriptor.onError(new IllegalArgumentException("request debe pedir n > 0 eventos"));
+          return;
+        }
+        try {
+          suscriptor.onNext(evento);
+        } catch (Throwable t) {
+          //  Un suscriptor que falla se da de baja
+          cancel();
+          return;
+        }
+      }
+      synchronized (this) {
+        programada = false;
+        programar();
+      }
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package cc.carretera;
+
+/**
+ * Estadisticas de los tiempos de espera de los coches bloqueados en
+ * entrar o avanzar: numero de esperas, media, maximo y percentiles
+ * aproximados con un histograma de potencias de 2 (en nanosegundos).
+ *
+ * No es thread-safe: la implementacion la actualiza con su cerrojo y
+ * entrega copias.
+ */
+public class Esperas {
+  //  histograma[i] cuenta las esperas de entre 2^(i-1) y 2^i - 1 ns
+  private final long[] histograma = new long[64];
+  private long numero;
+  private long total;
+  private long maximo;
+  //  Mayor numero de coches por delante en la cola de un segmento
+  private int maximaCola;
+
+  /**
+   * Registra una espera.
+   *
+   * @param nanos duracion de la espera
+   * @param delante coches que tenia delante en la cola al empezar a esperar
+   */
+  public void registrar(long nanos, int delante) {
+    if (nanos < 0)
+      nanos = 0;
+    histograma[64 - Long.numberOfLeadingZeros(nanos)]++;
+    numero++;
+    total += nanos;
+    if (nanos > maximo)
+      maximo = nanos;
+    if (delante > maximaCola)
+      maximaCola = delante;
+  }
+
+  /**
+   * Devuelve una copia de estas estadisticas.
+   */
+  public Esperas copia() {
+    Esperas copia = new Esperas();
+    System.arraycopy(histograma, 0, copia.histograma, 0, histograma.length);
+    copia.numero = numero;
+    copia.total = total;
+    copia.maximo = maximo;
+    copia.maximaCola = maximaCola;
+    return copia;
+  }
+
+  /**
+   * Devuelve el numero de esperas.
+   */
+  public long numero() {
+    return numero;
+  }
+
+  /**
+   * Devuelve la espera media en nanosegundos.
+   */
+  public double media() {
+    return numero == 0 ? 0 : (double) total / numero;
+  }
+
+  /**
+   * Devuelve la espera maxima en nanosegundos.
+   */
+  public long maximo() {
+    return maximo;
+  }
+
+  /**
+   * Devuelve el mayor numero de coches que un coche ha tenido por delante
+   * en la cola de un segmento, que acota cuantos carriles de ese segmento
+   * se liberan antes de que le toque.
+   */
+  public int maximaCola() {
+    return maximaCola;
+  }
+
+  /**
+   * Devuelve una cota superior (la potencia de 2 siguiente) del percentil p
+   * (entre 0 y 1) de las esperas en nanosegundos.
+   */
+  public long percentil(double p) {
+    long objetivo = (long) Math.ceil(p * numero);
+    long acumulado = 0;
+    for (int i = 0; i < histograma.length; i++) {
+      acumulado += histograma[i];
+      if (acumulado >= objetivo && acumulado > 0)
+        return i == 0 ? 0 : Math.min(maximo, (1L << i) - 1);
+    }
+    return maximo;
+  }
+
+  public String toString() {
+    return String.format("esperas=%d media=%.1fus p50<=%.1fus p99<=%.1fus max=%.1fus cola max=%d",
+                         numero, media() / 1e3, percentil(0.5) / 1e3, percentil(0.99) / 1e3,
+                         maximo / 1e3, maximaCola);
+  }
+}
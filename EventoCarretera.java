@@ -0,0 +1,69 @@
+package cc.carretera;
+
+/**
+ * Un cambio en una carretera, tal como lo publica una CarreteraObservable:
+ * un coche ocupa su primera posicion, pasa a otra o sale, o la carretera
+ * avanza su reloj.
+ */
+public final class EventoCarretera {
+  /**
+   * Tipos de evento.
+   */
+  public enum Tipo {
+    /** El coche ha entrado en la carretera y ocupa la posicion. */
+    ENTRAR,
+    /** El coche ha pasado a la posicion en el siguiente segmento. */
+    AVANZAR,
+    /** El coche ha salido de la carretera. */
+    SALIR,
+    /** El reloj de la carretera ha llegado al tick. */
+    TICK
+  }
+
+  private final Tipo tipo;
+  private final String id;
+  private final long posicion;
+  private final long tick;
+
+  EventoCarretera(Tipo tipo, String id, long posicion, long tick) {
+    this.tipo = tipo;
+    this.id = id;
+    this.posicion = posicion;
+    this.tick = tick;
+  }
+
+  /**
+   * Devuelve el tipo de evento.
+   */
+  public Tipo getTipo() {
+    return tipo;
+  }
+
+  /**
+   * Devuelve el identificador del coche, null en los eventos TICK.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Devuelve la posicion empaquetada (ver Pos.empaquetar) que ocupa el
+   * coche en ENTRAR y AVANZAR, o la que deja en SALIR. 0 en TICK.
+   */
+  public long getPosicion() {
+    return posicion;
+  }
+
+  /**
+   * Devuelve el tick de la carretera en el que ha ocurrido el evento.
+   */
+  public long getTick() {
+    return tick;
+  }
+
+  public String toString() {
+    if (tipo == Tipo.TICK)
+      return "TICK(" + tick + ")";
+    return tipo + "(" + id + "," + Pos.segmento(posicion) + "," + Pos.carril(posicion) + "," + tick + ")";
+  }
+}
@@ -0,0 +1,130 @@
+package cc.carretera;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Creacion de los hilos que ejecutan el protocolo de los coches.
+ *
+ * Con la propiedad -Dcarretera.hilos=virtual cada coche se ejecuta en un
+ * hilo virtual (Java 21 o posterior) en lugar de en un hilo de plataforma,
+ * de forma que cien mil coches no necesitan cien mil pilas del sistema
+ * operativo. En una JVM sin hilos virtuales se usan hilos de plataforma.
+ *
+ * Bloqueos de cada implementacion en un hilo virtual:
+ * - Ocupacion (CarreteraSegmentada) y las esperas de CarreteraMonitor
+ *   (por carril y en circulando) usan LockSupport.park, que libera el
+ *   hilo portador.
+ * - El Monitor de cclib 0.4.9 (la version de bench/pom.xml) es un
+ *   ReentrantLock justo y sus Cond son Condition de ese cerrojo, asi que
+ *   esperar el cerrojo o en un Cond (CarreteraMonitor, CarreteraSegmentada)
+ *   tambien libera el portador.
+ * - Los canales de JCSP (CarreteraCSP, CarreteraCSPFragmentada) usan
+ *   synchronized/wait, asi que un coche bloqueado en un canal retiene su
+ *   hilo portador. Si todos los portadores los retienen coches que esperan
+ *   carril, los coches que los liberarian no pueden ejecutarse y la
+ *   simulacion se bloquea: con estas carreteras no puede haber mas coches
+ *   a la vez que portadores (ver maximoVirtuales).
+ */
+public final class Hilos {
+  /**
+   * Tipo de hilo con el que se ejecutan los coches.
+   */
+  public enum Modo { PLATAFORMA, VIRTUAL }
+
+  //  Thread.ofVirtual() y Thread.Builder.unstarted(Runnable), si existen
+  private static final MethodHandle ofVirtual;
+  private static final MethodHandle unstarted;
+
+  static {
+    MethodHandle ov = null;
+    MethodHandle un = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      ov = lookup.findStatic(Thread.class, "ofVirtual",
+                             MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual")));
+      un = lookup.findVirtual(builder, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+    } catch (ReflectiveOperationException e) {
+      //  JVM sin hilos virtuales
+    }
+    ofVirtual = ov;
+    unstarted = un;
+  }
+
+  private static volatile Modo modo =
+    "virtual".equalsIgnoreCase(System.getProperty("carretera.hilos")) ? Modo.VIRTUAL : Modo.PLATAFORMA;
+
+  private Hilos() { }
+
+  /**
+   * Devuelve si la JVM tiene hilos virtuales.
+   */
+  public static boolean virtualesDisponibles() {
+    return ofVirtual != null;
+  }
+
+  /**
+   * Devuelve el modo con el que se crean los hilos de los coches.
+   */
+  public static Modo modo() {
+    return modo == Modo.VIRTUAL && virtualesDisponibles() ? Modo.VIRTUAL : Modo.PLATAFORMA;
+  }
+
+  /**
+   * Cambia el modo con el que se crean los hilos de los coches.
+   */
+  public static void modo(Modo nuevo) {
+    modo = nuevo;
+  }
+
+  /**
+   * Devuelve cuantos hilos portadores tienen los hilos virtuales
+   * (-Djdk.virtualThreadScheduler.parallelism, por defecto los
+   * procesadores).
+   */
+  public static int portadores() {
+    return Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                              Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Devuelve cuantos coches de la carretera pueden ejecutarse a la vez en
+   * hilos virtuales sin que la simulacion se bloquee: tantos como
+   * portadores si la carretera bloquea a los coches en canales de JCSP, o
+   * Integer.MAX_VALUE si no.
+   */
+  public static int maximoVirtuales(Carretera cr) {
+    if (cr instanceof CarreteraCSP || cr instanceof CarreteraCSPFragmentada)
+      return portadores();
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Crea (sin arrancarlo) un hilo del modo actual.
+   */
+  public static Thread nuevo(String nombre, Runnable tarea) {
+    Thread hilo;
+    if (modo() == Modo.VIRTUAL) {
+      try {
+        hilo = (Thread) unstarted.invoke(ofVirtual.invoke(), tarea);
+      } catch (Throwable e) {
+        throw new IllegalStateException("no se pudo crear un hilo virtual", e);
+      }
+    } else {
+      hilo = new Thread(tarea);
+    }
+    hilo.setName(nombre);
+    return hilo;
+  }
+
+  /**
+   * Crea y arranca un hilo del modo actual.
+   */
+  public static Thread arrancar(String nombre, Runnable tarea) {
+    Thread hilo = nuevo(nombre, tarea);
+    hilo.start();
+    return hilo;
+  }
+}
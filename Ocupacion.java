@@ -0,0 +1,134 @@
+package cc.carretera;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ocupacion de los carriles de una carretera sin cerrojos. Los carriles
+ * de cada segmento son un mapa de bits atomico (un bit a 1 por carril
+ * ocupado) y un carril se reclama con CAS sobre el primer bit libre.
+ *
+ * Solo se bloquean los hilos que de verdad esperan un carril: la cola
+ * de espera de un segmento se crea la primera vez que alguien espera en
+ * el, y liberar solo despierta si hay alguien en ella.
+ *
+ * Los carriles se numeran desde 0.
+ */
+public class Ocupacion {
+  private final int carriles;
+  //  Palabras de 64 bits por segmento
+  private final int palabras;
+  //  Bits a 1 en la ultima palabra de cada segmento (carriles que existen)
+  private final long ultimaLlena;
+  private final AtomicLongArray bits;
+  //  Hilos esperando un carril en cada segmento, creadas bajo demanda
+  private final AtomicReferenceArray<ConcurrentLinkedQueue<Thread>> esperando;
+
+  public Ocupacion(int segmentos, int carriles) {
+    if (segmentos <= 0 || carriles <= 0) {
+      throw new IllegalArgumentException("una carretera siempre tiene segmentos > 0 y carriles > 0");
+    }
+    this.carriles = carriles;
+    this.palabras = (carriles + 63) >>> 6;
+    int resto = carriles & 63;
+    this.ultimaLlena = resto == 0 ? -1L : (1L << resto) - 1;
+    this.bits = new AtomicLongArray(segmentos * palabras);
+    this.esperando = new AtomicReferenceArray<ConcurrentLinkedQueue<Thread>>(segmentos);
+  }
+
+  /**
+   * Reclama el carril libre de menor numero del segmento.
+   *
+   * @return el carril reclamado o -1 si el segmento esta lleno
+   */
+  public int reclamar(int segmento) {
+    int base = segmento * palabras;
+    for (int p = 0; p < palabras; p++) {
+      long llena = p == palabras - 1 ? ultimaLlena : -1L;
+      long actual = bits.get(base + p);
+      while ((actual & llena) != llena) {
+        long libre = ~actual & llena;
+        long bit = libre & -libre;
+        if (bits.compareAndSet(base + p, actual, actual | bit))
+          return (p << 6) + Long.numberOfTrailingZeros(bit);
+        actual = bits.get(base + p);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reclama un carril del segmento esperando, si hace falta, a que se
+   * libere alguno.
+   *
+   * @return el carril reclamado
+   */
+  public int reclamarOEsperar(int segmento) {
+    int carril = reclamar(segmento);
+    if (carril >= 0)
+      return carril;
+    ConcurrentLinkedQueue<Thread> cola = cola(segmento);
+    Thread yo = Thread.currentThread();
+    cola.add(yo);
+    //  Se vuelve a intentar despues de encolarse para no perder una
+    //  liberacion que ocurra entre el primer intento y el add
+    while ((carril = reclamar(segmento)) < 0)
+      LockSupport.park(this);
+    cola.remove(yo);
+    //  Si queda sitio se pasa el testigo al siguiente: dos liberaciones
+    //  seguidas pueden haber despertado solo a este hilo
+    if (libres(segmento) > 0)
+      despertar(cola);
+    return carril;
+  }
+
+  /**
+   * Libera un carril ocupado y despierta a un hilo que espere en el
+   * segmento, si lo hay.
+   */
+  public void liberar(int segmento, int carril) {
+    int i = segmento * palabras + (carril >>> 6);
+    long bit = 1L << (carril & 63);
+    long actual = bits.get(i);
+    while (!bits.compareAndSet(i, actual, actual & ~bit))
+      actual = bits.get(i);
+    ConcurrentLinkedQueue<Thread> cola = esperando.get(segmento);
+    if (cola != null)
+      despertar(cola);
+  }
+
+  /**
+   * Devuelve si el carril esta ocupado.
+   */
+  public boolean ocupado(int segmento, int carril) {
+    return (bits.get(segmento * palabras + (carril >>> 6)) & (1L << (carril & 63))) != 0;
+  }
+
+  /**
+   * Devuelve el numero de carriles libres del segmento.
+   */
+  public int libres(int segmento) {
+    int base = segmento * palabras;
+    int ocupados = 0;
+    for (int p = 0; p < palabras; p++)
+      ocupados += Long.bitCount(bits.get(base + p));
+    return carriles - ocupados;
+  }
+
+  private ConcurrentLinkedQueue<Thread> cola(int segmento) {
+    ConcurrentLinkedQueue<Thread> cola = esperando.get(segmento);
+    if (cola == null) {
+      esperando.compareAndSet(segmento, null, new ConcurrentLinkedQueue<Thread>());
+      cola = esperando.get(segmento);
+    }
+    return cola;
+  }
+
+  private static void despertar(ConcurrentLinkedQueue<Thread> cola) {
+    Thread siguiente = cola.peek();
+    if (siguiente != null)
+      LockSupport.unpark(siguiente);
+  }
+}
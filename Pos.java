@@ -2,10 +2,16 @@ package cc.carretera;
 
 /**
  * Una posicion en la carretera: un segmento y un carril.
+ *
+ * Una posicion tambien se puede representar empaquetada en un long, con el
+ * segmento en los 32 bits altos y el carril en los 32 bajos, que es lo que
+ * devuelven las operaciones empaquetadas de CarreteraIndexada. Como
+ * segmento y carril son siempre mayores que 0, el valor 0 nunca es una
+ * posicion empaquetada.
  */
 public class Pos {
-  private int segmento;
-  private int carril;
+  private final int segmento;
+  private final int carril;
 
   /**
    * Crea una posicion.
@@ -32,6 +38,41 @@ public class Pos {
     return carril;
   }
 
+  /**
+   * Devuelve esta posicion empaquetada en un long.
+   */
+  public long empaquetada() {
+    return empaquetar(segmento, carril);
+  }
+
+  /**
+   * Empaqueta una posicion en un long.
+   */
+  public static long empaquetar(int segmento, int carril) {
+    return ((long) segmento << 32) | (carril & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Devuelve el segmento de una posicion empaquetada.
+   */
+  public static int segmento(long posicion) {
+    return (int) (posicion >>> 32);
+  }
+
+  /**
+   * Devuelve el carril de una posicion empaquetada.
+   */
+  public static int carril(long posicion) {
+    return (int) posicion;
+  }
+
+  /**
+   * Crea la posicion que representa una posicion empaquetada.
+   */
+  public static Pos de(long posicion) {
+    return new Pos(segmento(posicion), carril(posicion));
+  }
+
   public boolean equals(Object obj) {
     if (obj instanceof Pos) {
       Pos p = (Pos) obj;
@@ -39,8 +80,11 @@ public class Pos {
     } return false;
   }
 
+  //  El carril con los bits invertidos ocupa los bits altos y el segmento
+  //  los bajos, asi que no hay colisiones mientras los bits que usan
+  //  segmento y carril no pasen de 32 (p.ej. 2^20 segmentos y 4096 carriles)
   public int hashCode() {
-    return getSegmento()*100 + getCarril();
+    return Integer.reverse(getCarril()) ^ getSegmento();
   }
 
   public String toString() {
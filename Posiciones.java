@@ -0,0 +1,56 @@
+package cc.carretera;
+
+/**
+ * Posiciones internadas de una carretera: hay un unico Pos por cada
+ * (segmento, carril), que se crea la primera vez que se pide, de forma que
+ * devolver una posicion desde entrar o avanzar no reserva memoria. Cada
+ * fila guarda las posiciones de Segmentos.TROZO segmentos consecutivos y se
+ * crea la primera vez que se usa, asi que crear las posiciones de una
+ * carretera larga solo reserva una referencia por fila. Puede cubrir solo
+ * un rango de segmentos, p.ej. los de un tramo de CarreteraCSPFragmentada.
+ */
+public class Posiciones {
+  private final Pos[][] filas;
+  private final int carriles;
+  //  Primer segmento que cubre
+  private final int desde;
+
+  public Posiciones(int segmentos, int carriles) {
+    this(0, segmentos, carriles);
+  }
+
+  /**
+   * Posiciones de los segmentos [desde, hasta).
+   */
+  public Posiciones(int desde, int hasta, int carriles) {
+    this.filas = new Pos[(hasta - desde + Segmentos.TROZO - 1) / Segmentos.TROZO][];
+    this.carriles = carriles;
+    this.desde = desde;
+  }
+
+  /**
+   * Devuelve la posicion del segmento y carril dados, numerados desde 0.
+   */
+  public Pos de(int segmento, int carril) {
+    int s = segmento - desde;
+    Pos[] fila = filas[s / Segmentos.TROZO];
+    if (fila == null) {
+      fila = new Pos[Segmentos.TROZO * carriles];
+      filas[s / Segmentos.TROZO] = fila;
+    }
+    int i = (s % Segmentos.TROZO) * carriles + carril;
+    Pos pos = fila[i];
+    if (pos == null) {
+      pos = new Pos(segmento + 1, carril + 1);
+      fila[i] = pos;
+    }
+    return pos;
+  }
+
+  /**
+   * Devuelve la posicion que representa una posicion empaquetada (ver Pos).
+   */
+  public Pos de(long posicion) {
+    return de(Pos.segmento(posicion) - 1, Pos.carril(posicion) - 1);
+  }
+}
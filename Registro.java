@@ -0,0 +1,80 @@
+package cc.carretera;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Registro de coches: asigna a cada identificador un indice entero denso
+ * (el menor libre) con el que las implementaciones guardan el estado del
+ * coche en arrays en lugar de en mapas. Los indices de los coches que se
+ * dan de baja se reutilizan.
+ */
+public class Registro {
+  private final HashMap<String, Integer> indices = new HashMap<String, Integer>();
+  private String[] ids = new String[16];
+  //  Pila de indices liberados
+  private int[] libres = new int[16];
+  private int nlibres;
+  //  Primer indice nunca usado
+  private int limite;
+
+  /**
+   * Devuelve el indice del coche, registrandolo si no lo estaba.
+   */
+  public synchronized int registrar(String id) {
+    Integer indice = indices.get(id);
+    if (indice != null)
+      return indice;
+    int coche;
+    if (nlibres > 0) {
+      coche = libres[--nlibres];
+    } else {
+      coche = limite++;
+      if (coche == ids.length)
+        ids = Arrays.copyOf(ids, ids.length * 2);
+    }
+    ids[coche] = id;
+    indices.put(id, coche);
+    return coche;
+  }
+
+  /**
+   * Devuelve el indice de un coche registrado.
+   */
+  public synchronized int buscar(String id) {
+    Integer indice = indices.get(id);
+    if (indice == null) {
+      throw new IllegalArgumentException("el coche " + id + " no esta registrado");
+    }
+    return indice;
+  }
+
+  /**
+   * Da de baja el coche con el indice dado; el indice se podra reutilizar.
+   */
+  public synchronized void liberar(int coche) {
+    String id = id(coche);
+    indices.remove(id);
+    ids[coche] = null;
+    if (nlibres == libres.length)
+      libres = Arrays.copyOf(libres, libres.length * 2);
+    libres[nlibres++] = coche;
+  }
+
+  /**
+   * Devuelve el identificador del coche con el indice dado.
+   */
+  public synchronized String id(int coche) {
+    if (coche < 0 || coche >= limite || ids[coche] == null) {
+      throw new IllegalArgumentException("el indice " + coche + " no corresponde a ningun coche");
+    }
+    return ids[coche];
+  }
+
+  /**
+   * Devuelve un valor mayor que cualquier indice asignado hasta ahora.
+   */
+  public synchronized int limite() {
+    return limite;
+  }
+}
@@ -1,18 +1,246 @@
 package cc.carretera;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hilo que llama a tick() de una carretera con un periodo fijo.
+ *
+ * Los ticks se programan a ritmo fijo sobre System.nanoTime: el tick n se
+ * da en inicio + n * periodo, asi que lo que tarda tick() no desplaza los
+ * siguientes. Si un tick termina despues del plazo del siguiente (un
+ * retraso), los ticks atrasados se dan seguidos hasta recuperar el ritmo y
+ * el retraso se cuenta y se traza. Los periodos por debajo del milisegundo
+ * se esperan con parkNanos y los ultimos microsegundos girando.
+ *
+ * Si la carretera cuenta sus coches (ver CarreteraVigilada) el reloj se
+ * suspende mientras no hay ninguno y vuelve a empezar con el siguiente
+ * entrar, de forma que una carretera vacia no gasta CPU. Con cualquier otra
+ * carretera se suspende igual si los coches usan la que devuelve
+ * carretera(), que cuenta los coches presentes.
+ *
+ * En tiempo comprimido (solo con una CarreteraAcelerada) cada paso del reloj
+ * salta directamente al siguiente tick en el que algun coche termina su
+ * segmento, en cuanto todos los coches estan bloqueados, y el periodo es la
+ * pausa entre pasos. Mientras alguno no lo esta el reloj se suspende hasta
+ * que la carretera le avisa (ver CarreteraAcelerada.alBloquearse). Con periodo 0 la simulacion va tan rapido como los
+ * coches avanzan.
+ */
 public class Reloj extends Thread {
-  private static int MS_POR_TICK
-    = 1000;
-  private Carretera cr;
+  /**
+   * Periodo por defecto: un segundo.
+   */
+  public static final long PERIODO_POR_DEFECTO = 1_000_000_000L;
+
+  //  Por debajo de esta espera se gira en lugar de dormir
+  private static final long GIRO = 50_000;
+
+  private final Carretera cr;
+  private final long periodo;
+  //  La carretera si el tiempo es comprimido, null si no
+  private final CarreteraAcelerada acelerada;
+  //  La carretera si cuenta sus coches, null si no
+  private final CarreteraVigilada vigilada;
+  private volatile Presencia presencia;
+  private volatile boolean detenido;
+
+  private volatile long ticks;
+  private volatile long retrasos;
+  private volatile long maximoRetraso;
+  private volatile long suspensiones;
 
   public Reloj(Carretera carretera) {
+    this(carretera, PERIODO_POR_DEFECTO);
+  }
+
+  /**
+   * @param carretera carretera a la que da los ticks
+   * @param periodo nanosegundos entre ticks (0 para darlos sin esperar)
+   */
+  public Reloj(Carretera carretera, long periodo) {
+    this(carretera, periodo, false);
+  }
+
+  /**
+   * @param carretera carretera a la que da los ticks
+   * @param periodo nanosegundos entre ticks, o entre pasos en tiempo
+   *   comprimido (0 para darlos sin esperar)
+   * @param comprimido si cada paso salta hasta el siguiente coche que
+   *   termina su segmento, la carretera debe ser una CarreteraAcelerada
+   */
+  public Reloj(Carretera carretera, long periodo, boolean comprimido) {
+    super("reloj");
+    if (periodo < 0) {
+      throw new IllegalArgumentException("el periodo no puede ser negativo: " + periodo);
+    }
+    if (comprimido && !(carretera instanceof CarreteraAcelerada)) {
+      throw new IllegalArgumentException(carretera.getClass().getSimpleName() + " no puede avanzar varios ticks de una vez");
+    }
     this.cr = carretera;
+    this.periodo = periodo;
+    this.acelerada = comprimido ? (CarreteraAcelerada) carretera : null;
+    this.vigilada = carretera instanceof CarreteraVigilada ? (CarreteraVigilada) carretera : null;
+    if (vigilada != null)
+      vigilada.alOcupar(() -> LockSupport.unpark(this));
+    if (acelerada != null)
+      acelerada.alBloquearse(() -> LockSupport.unpark(this));
+  }
+
+  /**
+   * Devuelve la carretera que deben usar los coches para que el reloj se
+   * suspenda cuando no hay ninguno: delega en la del reloj y cuenta los
+   * coches entre entrar y salir. Solo cubre la interfaz Carretera, no la
+   * de CarreteraIndexada. Si la carretera del reloj es una
+   * CarreteraVigilada la devuelve a ella, que ya cuenta sus coches.
+   */
+  public synchronized Carretera carretera() {
+    if (vigilada != null)
+      return vigilada;
+    if (presencia == null)
+      presencia = new Presencia();
+    return presencia;
+  }
+
+  /**
+   * Devuelve el periodo en nanosegundos.
+   */
+  public long periodo() {
+    return periodo;
+  }
+
+  /**
+   * Devuelve si el tiempo es comprimido.
+   */
+  public boolean comprimido() {
+    return acelerada != null;
+  }
+
+  /**
+   * Devuelve los ticks dados.
+   */
+  public long ticks() {
+    return ticks;
+  }
+
+  /**
+   * Devuelve cuantos ticks han terminado despues del plazo del siguiente.
+   */
+  public long retrasos() {
+    return retrasos;
+  }
+
+  /**
+   * Devuelve el mayor retraso en nanosegundos.
+   */
+  public long maximoRetraso() {
+    return maximoRetraso;
+  }
+
+  /**
+   * Devuelve cuantas veces se ha suspendido el reloj por no haber coches.
+   */
+  public long suspensiones() {
+    return suspensiones;
+  }
+
+  /**
+   * Para el reloj despues del tick en curso.
+   */
+  public void detener() {
+    detenido = true;
+    LockSupport.unpark(this);
   }
 
   public void run() {
-    while (true) {
-      try { sleep(MS_POR_TICK); }
-      catch (Exception e) { }
+    long plazo = System.nanoTime() + periodo;
+    while (!detenido) {
+      if (vacia()) {
+        suspensiones++;
+        Traza.evento(Traza.Nivel.INFO, "reloj suspendido");
+        while (!detenido && vacia())
+          LockSupport.park(this);
+        if (detenido)
+          return;
+        Traza.evento(Traza.Nivel.INFO, "reloj reanudado");
+        plazo = System.nanoTime() + periodo;
+      }
+      esperar(plazo);
+      if (detenido)
+        return;
+      //  El ultimo coche ha salido mientras esperaba
+      if (vacia())
+        continue;
+      if (acelerada != null) {
+        //  Hasta que todos los coches esten bloqueados no se puede saltar:
+        //  la carretera despierta al reloj cuando se bloquea el ultimo, y si
+        //  ya lo ha hecho park vuelve enseguida
+        int n = acelerada.avanzarHastaSiguienteEvento();
+        if (n == 0) {
+          LockSupport.park(this);
+          continue;
+        }
+        ticks += n;
+        plazo = System.nanoTime() + periodo;
+        continue;
+      }
+      cr.tick();
+      ticks++;
+      plazo += periodo;
+      long retraso = System.nanoTime() - plazo;
+      if (retraso > 0 && periodo > 0) {
+        retrasos++;
+        if (retraso > maximoRetraso)
+          maximoRetraso = retraso;
+        Traza.evento(Traza.Nivel.INFO, "reloj retrasado ns", retraso);
+      }
+    }
+  }
+
+  //  Devuelve si se sabe que no hay coches en la carretera
+  private boolean vacia() {
+    if (vigilada != null)
+      return vigilada.presentes() == 0;
+    Presencia p = presencia;
+    return p != null && p.presentes.get() == 0;
+  }
+
+  private void esperar(long plazo) {
+    long queda;
+    while (!detenido && (queda = plazo - System.nanoTime()) > 0) {
+      if (queda > GIRO)
+        LockSupport.parkNanos(this, queda - GIRO);
+      else
+        Thread.onSpinWait();
+    }
+  }
+
+  //  Carretera que cuenta los coches presentes y despierta al reloj cuando
+  //  entra el primero
+  private final class Presencia implements Carretera {
+    final AtomicInteger presentes = new AtomicInteger();
+
+    public Pos entrar(String id, int tks) {
+      //  Se cuenta antes de entrar: el coche puede necesitar ticks para
+      //  conseguir carril
+      if (presentes.getAndIncrement() == 0)
+        LockSupport.unpark(Reloj.this);
+      return cr.entrar(id, tks);
+    }
+
+    public Pos avanzar(String id, int tks) {
+      return cr.avanzar(id, tks);
+    }
+
+    public void circulando(String id) {
+      cr.circulando(id);
+    }
+
+    public void salir(String id) {
+      cr.salir(id);
+      presentes.decrementAndGet();
+    }
+
+    public void tick() {
       cr.tick();
     }
   }
@@ -0,0 +1,155 @@
+package cc.carretera;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Rueda temporal (hashed timing wheel) con plazos en ticks absolutos. Los
+ * elementos son enteros (los indices de los coches), asi que programar y
+ * vencer no reservan memoria una vez que las ranuras han crecido.
+ *
+ * Cada elemento se guarda en la ranura plazo % ranuras. En cada tick solo
+ * se recorre la ranura del tick actual, asi que el coste de un tick depende
+ * de los elementos que vencen en el (mas los que tienen un plazo mas de una
+ * vuelta por delante y comparten ranura), no de cuantos hay programados.
+ *
+ * La rueda no permite desprogramar: quien la usa debe comprobar al vencer
+ * un elemento que su plazo sigue siendo el programado y descartarlo si no.
+ */
+public class RuedaTemporal {
+  private final int mascara;
+  //  Elementos y plazos de cada ranura, en arrays que solo crecen
+  private final int[][] elementos;
+  private final long[][] plazos;
+  private final int[] tamanos;
+  private long ahora;
+  private int programados;
+
+  /**
+   * Crea una rueda en el tick 0.
+   *
+   * @param ranuras numero minimo de ranuras, se redondea a potencia de 2.
+   *   Conviene que sea mayor que el plazo relativo mas habitual.
+   */
+  public RuedaTemporal(int ranuras) {
+    if (ranuras <= 0) {
+      throw new IllegalArgumentException("una rueda siempre tiene ranuras > 0");
+    }
+    int n = Integer.highestOneBit(ranuras);
+    if (n < ranuras)
+      n <<= 1;
+    this.mascara = n - 1;
+    this.elementos = new int[n][];
+    this.plazos = new long[n][];
+    this.tamanos = new int[n];
+  }
+
+  /**
+   * Devuelve el tick actual.
+   */
+  public long ahora() {
+    return ahora;
+  }
+
+  /**
+   * Devuelve el numero de elementos programados (incluidos los descartados
+   * por quien usa la rueda que aun no han vencido).
+   */
+  public int programados() {
+    return programados;
+  }
+
+  /**
+   * Programa un elemento para que venza en el tick absoluto plazo, que debe
+   * ser posterior al actual.
+   */
+  public void programar(int elemento, long plazo) {
+    if (plazo <= ahora) {
+      throw new IllegalArgumentException("el plazo " + plazo + " no es posterior al tick actual " + ahora);
+    }
+    int ranura = (int) (plazo & mascara);
+    int n = tamanos[ranura];
+    if (elementos[ranura] == null) {
+      elementos[ranura] = new int[4];
+      plazos[ranura] = new long[4];
+    } else if (n == elementos[ranura].length) {
+      elementos[ranura] = Arrays.copyOf(elementos[ranura], n * 2);
+      plazos[ranura] = Arrays.copyOf(plazos[ranura], n * 2);
+    }
+    elementos[ranura][n] = elemento;
+    plazos[ranura][n] = plazo;
+    tamanos[ranura] = n + 1;
+    programados++;
+  }
+
+  /**
+   * Avanza un tick y entrega a vencidos los elementos cuyo plazo es el
+   * nuevo tick actual.
+   */
+  public void tick(IntConsumer vencidos) {
+    ahora++;
+    int ranura = (int) (ahora & mascara);
+    int n = tamanos[ranura];
+    if (n == 0)
+      return;
+    int[] es = elementos[ranura];
+    long[] ps = plazos[ranura];
+    int i = 0;
+    while (i < n) {
+      if (ps[i] == ahora) {
+        int elemento = es[i];
+        //  Se quita cambiandolo por el ultimo de la ranura
+        n--;
+        es[i] = es[n];
+        ps[i] = ps[n];
+        programados--;
+        vencidos.accept(elemento);
+      } else {
+        i++;
+      }
+    }
+    tamanos[ranura] = n;
+  }
+
+  /**
+   * Avanza n ticks entregando a vencidos los elementos que vencen en cada
+   * uno, en orden de plazo y con ahora() ya en su plazo. Los ticks en los
+   * que no vence nada se saltan sin recorrer sus ranuras.
+   */
+  public void tick(long n, IntConsumer vencidos) {
+    long hasta = ahora + n;
+    while (programados > 0) {
+      long siguiente = siguiente();
+      if (siguiente > hasta)
+        break;
+      ahora = siguiente - 1;
+      tick(vencidos);
+    }
+    ahora = Math.max(ahora, hasta);
+  }
+
+  /**
+   * Devuelve el menor plazo programado, o Long.MAX_VALUE si no hay
+   * ninguno. Puede ser el de un elemento que quien usa la rueda va a
+   * descartar.
+   */
+  public long siguiente() {
+    if (programados == 0)
+      return Long.MAX_VALUE;
+    //  Primero una vuelta desde el tick siguiente: el primer plazo que
+    //  coincide con su ranura es el menor
+    for (long t = ahora + 1; t <= ahora + elementos.length; t++) {
+      int ranura = (int) (t & mascara);
+      long[] ps = plazos[ranura];
+      for (int i = 0; i < tamanos[ranura]; i++)
+        if (ps[i] == t)
+          return t;
+    }
+    //  Todos los plazos estan a mas de una vuelta
+    long minimo = Long.MAX_VALUE;
+    for (int ranura = 0; ranura < elementos.length; ranura++)
+      for (int i = 0; i < tamanos[ranura]; i++)
+        minimo = Math.min(minimo, plazos[ranura][i]);
+    return minimo;
+  }
+}
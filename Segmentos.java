@@ -0,0 +1,244 @@
+package cc.carretera;
+
+/**
+ * Estado de los segmentos de una carretera (ver AlmacenSegmentos) guardado
+ * por trozos que solo existen mientras tienen algo: la memoria depende de
+ * los segmentos ocupados y no de la longitud de la carretera.
+ *
+ * Los segmentos se agrupan en trozos de TROZO segmentos consecutivos. Un
+ * trozo se crea la primera vez que se ocupa un carril o se espera en uno de
+ * sus segmentos, y se libera en cuanto no le queda ningun carril ocupado,
+ * cola de espera ni segmento sucio. Un segmento sin trozo esta vacio. Crear
+ * la carretera solo reserva el directorio de trozos, una referencia por
+ * cada TROZO segmentos.
+ *
+ * Por segmento se guarda el coche de cada carril (con un mapa de bits para
+ * encontrar el primer carril libre), la cola FIFO de los coches que esperan
+ * carril, si el segmento esta sucio (ver CarreteraMonitor) y las posiciones
+ * internadas de sus carriles, que se liberan con el trozo.
+ *
+ * No es seguro para hilos: quien lo usa debe tener tomado su cerrojo. Los
+ * segmentos y carriles se numeran desde 0.
+ */
+public class Segmentos implements AlmacenSegmentos {
+  //  Segmentos por trozo
+  static final int TROZO = 256;
+
+  private final int carriles;
+  private final int palabras;
+  private final long ultimaLlena;
+  private final Trozo[] directorio;
+  private int trozos;
+
+  //  Estado de TROZO segmentos. Cuenta lo que impide liberarlo
+  private final class Trozo {
+    final long[] bits = new long[TROZO * palabras];
+    final int[] ocupados = new int[TROZO];
+    //  Coche de cada carril, en el indice segmento * carriles + carril
+    final int[] coches = new int[TROZO * carriles];
+    ColaEnteros[] espera;
+    boolean[] sucio;
+    //  Un unico Pos por carril, creado la primera vez que se pide
+    Pos[] posiciones;
+    int carrilesOcupados;
+    int colas;
+    int sucios;
+
+    boolean vacio() {
+      return carrilesOcupados == 0 && colas == 0 && sucios == 0;
+    }
+  }
+
+  public Segmentos(int segmentos, int carriles) {
+    if (segmentos <= 0 || carriles <= 0) {
+      throw new IllegalArgumentException("una carretera siempre tiene segmentos > 0 y carriles > 0");
+    }
+    this.carriles = carriles;
+    this.palabras = (carriles + 63) >>> 6;
+    int resto = carriles & 63;
+    this.ultimaLlena = resto == 0 ? -1L : (1L << resto) - 1;
+    this.directorio = new Trozo[(segmentos + TROZO - 1) / TROZO];
+  }
+
+  /**
+   * Devuelve cuantos trozos hay creados.
+   */
+  public int trozos() {
+    return trozos;
+  }
+
+  /**
+   * Devuelve el numero de carriles libres del segmento.
+   */
+  public int libres(int segmento) {
+    Trozo t = directorio[segmento / TROZO];
+    return t == null ? carriles : carriles - t.ocupados[segmento % TROZO];
+  }
+
+  /**
+   * Ocupa con el coche el carril libre de menor numero del segmento.
+   *
+   * @return el carril ocupado o -1 si el segmento esta lleno
+   */
+  public int ocupar(int segmento, int coche) {
+    Trozo t = trozo(segmento);
+    int s = segmento % TROZO;
+    int base = s * palabras;
+    for (int p = 0; p < palabras; p++) {
+      long llena = p == palabras - 1 ? ultimaLlena : -1L;
+      long libre = ~t.bits[base + p] & llena;
+      if (libre != 0) {
+        long bit = libre & -libre;
+        t.bits[base + p] |= bit;
+        int carril = (p << 6) + Long.numberOfTrailingZeros(bit);
+        t.coches[s * carriles + carril] = coche;
+        t.ocupados[s]++;
+        t.carrilesOcupados++;
+        return carril;
+      }
+    }
+    soltar(segmento / TROZO, t);
+    return -1;
+  }
+
+  /**
+   * Libera un carril ocupado.
+   */
+  public void liberar(int segmento, int carril) {
+    Trozo t = directorio[segmento / TROZO];
+    int s = segmento % TROZO;
+    t.bits[s * palabras + (carril >>> 6)] &= ~(1L << (carril & 63));
+    t.ocupados[s]--;
+    t.carrilesOcupados--;
+    soltar(segmento / TROZO, t);
+  }
+
+  /**
+   * Devuelve el coche que ocupa el carril o -1 si esta libre.
+   */
+  public int coche(int segmento, int carril) {
+    Trozo t = directorio[segmento / TROZO];
+    int s = segmento % TROZO;
+    if (t == null || (t.bits[s * palabras + (carril >>> 6)] & (1L << (carril & 63))) == 0)
+      return -1;
+    return t.coches[s * carriles + carril];
+  }
+
+  /**
+   * Devuelve la cola de espera del segmento, o null si no tiene.
+   */
+  public ColaEnteros espera(int segmento) {
+    Trozo t = directorio[segmento / TROZO];
+    return t == null || t.espera == null ? null : t.espera[segmento % TROZO];
+  }
+
+  /**
+   * Pone el coche al final de la cola de espera del segmento, creandola si
+   * no existe.
+   *
+   * @return coches que ya esperaban en el segmento
+   */
+  public int esperar(int segmento, int coche) {
+    Trozo t = trozo(segmento);
+    int s = segmento % TROZO;
+    if (t.espera == null)
+      t.espera = new ColaEnteros[TROZO];
+    ColaEnteros cola = t.espera[s];
+    if (cola == null) {
+      cola = new ColaEnteros(4);
+      t.espera[s] = cola;
+      t.colas++;
+    }
+    int delante = cola.size();
+    cola.add(coche);
+    return delante;
+  }
+
+  /**
+   * Quita la cola de espera del segmento si esta vacia, para que el trozo
+   * pueda liberarse. Se llama despues de sacar coches de ella.
+   */
+  public void podarEspera(int segmento) {
+    Trozo t = directorio[segmento / TROZO];
+    int s = segmento % TROZO;
+    if (t.espera[s] != null && t.espera[s].isEmpty()) {
+      t.espera[s] = null;
+      t.colas--;
+      soltar(segmento / TROZO, t);
+    }
+  }
+
+  /**
+   * Marca el segmento como sucio.
+   *
+   * @return false si ya estaba sucio
+   */
+  public boolean ensuciar(int segmento) {
+    Trozo t = trozo(segmento);
+    int s = segmento % TROZO;
+    if (t.sucio == null)
+      t.sucio = new boolean[TROZO];
+    if (t.sucio[s])
+      return false;
+    t.sucio[s] = true;
+    t.sucios++;
+    return true;
+  }
+
+  /**
+   * Devuelve si el segmento esta sucio.
+   */
+  public boolean sucio(int segmento) {
+    Trozo t = directorio[segmento / TROZO];
+    return t != null && t.sucio != null && t.sucio[segmento % TROZO];
+  }
+
+  /**
+   * Quita la marca de sucio del segmento.
+   */
+  public void limpiar(int segmento) {
+    Trozo t = directorio[segmento / TROZO];
+    int s = segmento % TROZO;
+    if (t != null && t.sucio != null && t.sucio[s]) {
+      t.sucio[s] = false;
+      t.sucios--;
+      soltar(segmento / TROZO, t);
+    }
+  }
+
+  /**
+   * Devuelve la posicion de un carril ocupado, que es unica mientras su
+   * trozo exista, para no crear una en cada entrar y avanzar.
+   */
+  public Pos pos(int segmento, int carril) {
+    Trozo t = directorio[segmento / TROZO];
+    if (t == null)
+      return new Pos(segmento + 1, carril + 1);
+    if (t.posiciones == null)
+      t.posiciones = new Pos[TROZO * carriles];
+    int i = (segmento % TROZO) * carriles + carril;
+    Pos pos = t.posiciones[i];
+    if (pos == null) {
+      pos = new Pos(segmento + 1, carril + 1);
+      t.posiciones[i] = pos;
+    }
+    return pos;
+  }
+
+  private Trozo trozo(int segmento) {
+    Trozo t = directorio[segmento / TROZO];
+    if (t == null) {
+      t = new Trozo();
+      directorio[segmento / TROZO] = t;
+      trozos++;
+    }
+    return t;
+  }
+
+  private void soltar(int i, Trozo t) {
+    if (t.vacio()) {
+      directorio[i] = null;
+      trozos--;
+    }
+  }
+}
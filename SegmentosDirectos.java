@@ -0,0 +1,148 @@
+package cc.carretera;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+/**
+ * Estado de los segmentos de una carretera (ver AlmacenSegmentos) fuera
+ * del heap, para carreteras de millones de segmentos.
+ *
+ * El mapa de bits de carriles ocupados, cuantos hay ocupados, la marca de
+ * sucio y el coche de cada carril estan en un ByteBuffer directo al que se
+ * accede con VarHandles. El buffer empieza a ceros, que es una carretera
+ * vacia, asi que crearlo no recorre los segmentos. Las colas de espera solo
+ * existen para los segmentos que tienen alguna y las posiciones se crean en
+ * cada llamada en lugar de internarse, de forma que lo que ocupa en el heap
+ * no depende de la longitud de la carretera.
+ *
+ * La memoria directa cuenta contra -XX:MaxDirectMemorySize y un buffer no
+ * puede pasar de 2 GB: 32 bytes por segmento con 4 carriles.
+ *
+ * No es seguro para hilos: quien lo usa debe tener tomado su cerrojo.
+ */
+public class SegmentosDirectos implements AlmacenSegmentos {
+  //  Cada segmento ocupa en el buffer un int con los carriles ocupados, un
+  //  int de marcas, el mapa de bits en palabras de 64 bits y el coche de
+  //  cada carril, redondeado a 8 bytes
+  private static final int OCUPADOS = 0;
+  private static final int MARCAS = 4;
+  private static final int BITS = 8;
+  //  Marca de segmento sucio
+  private static final int SUCIO = 1;
+
+  private static final VarHandle INT =
+    MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+  private static final VarHandle LONG =
+    MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  private final int carriles;
+  private final int palabras;
+  private final long ultimaLlena;
+  //  Desplazamiento de los coches dentro del segmento y bytes por segmento
+  private final int coches;
+  private final int paso;
+  private final ByteBuffer estado;
+  //  Colas de espera de los segmentos que tienen alguna
+  private final HashMap<Integer, ColaEnteros> espera = new HashMap<Integer, ColaEnteros>();
+
+  public SegmentosDirectos(int segmentos, int carriles) {
+    if (segmentos <= 0 || carriles <= 0) {
+      throw new IllegalArgumentException("una carretera siempre tiene segmentos > 0 y carriles > 0");
+    }
+    this.carriles = carriles;
+    this.palabras = (carriles + 63) >>> 6;
+    int resto = carriles & 63;
+    this.ultimaLlena = resto == 0 ? -1L : (1L << resto) - 1;
+    this.coches = BITS + 8 * palabras;
+    this.paso = (coches + 4 * carriles + 7) & ~7;
+    long bytes = (long) segmentos * paso;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("la carretera necesita " + bytes + " bytes y un buffer directo admite como mucho " + Integer.MAX_VALUE);
+    }
+    estado = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+  }
+
+  public int libres(int segmento) {
+    return carriles - (int) INT.get(estado, segmento * paso + OCUPADOS);
+  }
+
+  public int ocupar(int segmento, int coche) {
+    int base = segmento * paso;
+    for (int p = 0; p < palabras; p++) {
+      int i = base + BITS + 8 * p;
+      long llena = p == palabras - 1 ? ultimaLlena : -1L;
+      long actual = (long) LONG.get(estado, i);
+      long libre = ~actual & llena;
+      if (libre != 0) {
+        long bit = libre & -libre;
+        LONG.set(estado, i, actual | bit);
+        INT.set(estado, base + OCUPADOS, (int) INT.get(estado, base + OCUPADOS) + 1);
+        int carril = (p << 6) + Long.numberOfTrailingZeros(bit);
+        INT.set(estado, base + coches + 4 * carril, coche);
+        return carril;
+      }
+    }
+    return -1;
+  }
+
+  public void liberar(int segmento, int carril) {
+    int base = segmento * paso;
+    int i = base + BITS + 8 * (carril >>> 6);
+    LONG.set(estado, i, (long) LONG.get(estado, i) & ~(1L << (carril & 63)));
+    INT.set(estado, base + OCUPADOS, (int) INT.get(estado, base + OCUPADOS) - 1);
+  }
+
+  public int coche(int segmento, int carril) {
+    int base = segmento * paso;
+    long palabra = (long) LONG.get(estado, base + BITS + 8 * (carril >>> 6));
+    if ((palabra & (1L << (carril & 63))) == 0)
+      return -1;
+    return (int) INT.get(estado, base + coches + 4 * carril);
+  }
+
+  public ColaEnteros espera(int segmento) {
+    return espera.isEmpty() ? null : espera.get(segmento);
+  }
+
+  public int esperar(int segmento, int coche) {
+    ColaEnteros cola = espera.get(segmento);
+    if (cola == null) {
+      cola = new ColaEnteros(4);
+      espera.put(segmento, cola);
+    }
+    int delante = cola.size();
+    cola.add(coche);
+    return delante;
+  }
+
+  public void podarEspera(int segmento) {
+    ColaEnteros cola = espera.get(segmento);
+    if (cola != null && cola.isEmpty())
+      espera.remove(segmento);
+  }
+
+  public boolean ensuciar(int segmento) {
+    int i = segmento * paso + MARCAS;
+    int marcas = (int) INT.get(estado, i);
+    if ((marcas & SUCIO) != 0)
+      return false;
+    INT.set(estado, i, marcas | SUCIO);
+    return true;
+  }
+
+  public boolean sucio(int segmento) {
+    return ((int) INT.get(estado, segmento * paso + MARCAS) & SUCIO) != 0;
+  }
+
+  public void limpiar(int segmento) {
+    int i = segmento * paso + MARCAS;
+    INT.set(estado, i, (int) INT.get(estado, i) & ~SUCIO);
+  }
+
+  public Pos pos(int segmento, int carril) {
+    return new Pos(segmento + 1, carril + 1);
+  }
+}
@@ -0,0 +1,219 @@
+package cc.carretera;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Traza de las implementaciones de la carretera, compartida por todas.
+ *
+ * Cada evento es un texto constante con hasta dos argumentos enteros (o un
+ * objeto ya formado, para los volcados de estado) y se guarda en un buffer
+ * circular reservado al arrancar. Un hilo de fondo los escribe, de forma
+ * que el hilo que traza (p.ej. el servidor CSP) no espera a la consola.
+ * Si el buffer se llena los eventos se descartan y se cuentan.
+ *
+ * El nivel se fija al cargar la clase con -Dcarretera.traza=nivel (por
+ * defecto apagada) y el fichero con -Dcarretera.traza.fichero=ruta (por
+ * defecto la salida estandar). Como el nivel es una constante, con la traza
+ * apagada el JIT elimina las llamadas y no cuestan nada; los volcados que
+ * construyen un texto deben ir dentro de un if (Traza.activa(nivel)).
+ */
+public final class Traza {
+  /**
+   * Niveles de traza, de menos a mas detalle.
+   */
+  public enum Nivel { APAGADA, INFO, DETALLE, ESTADO }
+
+  //  Nivel de la traza: solo se registran los eventos de nivel <= NIVEL
+  private static final int NIVEL = nivelInicial();
+  private static final int CAPACIDAD = 1 << 16;
+  private static final int MASCARA = CAPACIDAD - 1;
+
+  //  Buffer circular: la ranura de la secuencia s es s & MASCARA y esta
+  //  lista para el escritor cuando publicado[ranura] == s + 1
+  private static final AtomicLongArray publicado;
+  private static final int[] niveles;
+  private static final String[] eventos;
+  private static final Object[] textos;
+  private static final long[] primeros;
+  private static final long[] segundos;
+  private static final byte[] argumentos;
+  private static final long[] tiempos;
+  //  Siguiente secuencia a reservar y siguiente a escribir
+  private static final AtomicLong siguiente = new AtomicLong();
+  private static volatile long escrito;
+  private static final AtomicLong perdidos = new AtomicLong();
+  private static final Thread escritor;
+
+  static {
+    int n = NIVEL > 0 ? CAPACIDAD : 0;
+    publicado = new AtomicLongArray(n);
+    niveles = new int[n];
+    eventos = new String[n];
+    textos = new Object[n];
+    primeros = new long[n];
+    segundos = new long[n];
+    argumentos = new byte[n];
+    tiempos = new long[n];
+    if (NIVEL > 0) {
+      PrintStream salida = salidaInicial();
+      escritor = new Thread(() -> escribir(salida), "traza");
+      escritor.setDaemon(true);
+      escritor.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(Traza::vaciar, "traza-vaciar"));
+    } else {
+      escritor = null;
+    }
+  }
+
+  private Traza() { }
+
+  private static int nivelInicial() {
+    String nivel = System.getProperty("carretera.traza");
+    if (nivel == null)
+      return 0;
+    try {
+      return Nivel.valueOf(nivel.toUpperCase()).ordinal();
+    } catch (IllegalArgumentException e) {
+      System.err.println("carretera.traza: nivel desconocido " + nivel + ", la traza queda apagada");
+      return 0;
+    }
+  }
+
+  private static PrintStream salidaInicial() {
+    String fichero = System.getProperty("carretera.traza.fichero");
+    if (fichero != null) {
+      try {
+        return new PrintStream(new FileOutputStream(fichero), false);
+      } catch (FileNotFoundException e) {
+        System.err.println("carretera.traza.fichero: " + e.getMessage() + ", se usa la salida estandar");
+      }
+    }
+    return System.out;
+  }
+
+  /**
+   * Devuelve el nivel de la traza.
+   */
+  public static Nivel nivel() {
+    return Nivel.values()[NIVEL];
+  }
+
+  /**
+   * Devuelve si se registran los eventos del nivel dado.
+   */
+  public static boolean activa(Nivel nivel) {
+    return nivel.ordinal() <= NIVEL && nivel != Nivel.APAGADA;
+  }
+
+  /**
+   * Devuelve los eventos descartados por tener el buffer lleno.
+   */
+  public static long perdidos() {
+    return perdidos.get();
+  }
+
+  /**
+   * Registra un evento sin argumentos.
+   */
+  public static void evento(Nivel nivel, String evento) {
+    if (activa(nivel))
+      registrar(nivel, evento, null, 0, 0, 0);
+  }
+
+  /**
+   * Registra un evento con un argumento.
+   */
+  public static void evento(Nivel nivel, String evento, long a) {
+    if (activa(nivel))
+      registrar(nivel, evento, null, a, 0, 1);
+  }
+
+  /**
+   * Registra un evento con dos argumentos.
+   */
+  public static void evento(Nivel nivel, String evento, long a, long b) {
+    if (activa(nivel))
+      registrar(nivel, evento, null, a, b, 2);
+  }
+
+  /**
+   * Registra un evento con un texto que el escritor convierte con
+   * toString, asi que no debe cambiar despues de registrarlo.
+   */
+  public static void evento(Nivel nivel, String evento, Object texto) {
+    if (activa(nivel))
+      registrar(nivel, evento, texto, 0, 0, 3);
+  }
+
+  private static void registrar(Nivel nivel, String evento, Object texto, long a, long b, int args) {
+    long s;
+    do {
+      s = siguiente.get();
+      if (s - escrito >= CAPACIDAD) {
+        perdidos.incrementAndGet();
+        return;
+      }
+    } while (!siguiente.compareAndSet(s, s + 1));
+    int i = (int) (s & MASCARA);
+    niveles[i] = nivel.ordinal();
+    eventos[i] = evento;
+    textos[i] = texto;
+    primeros[i] = a;
+    segundos[i] = b;
+    argumentos[i] = (byte) args;
+    tiempos[i] = System.nanoTime();
+    publicado.lazySet(i, s + 1);
+  }
+
+  //  Bucle del hilo escritor: escribe los eventos publicados en orden
+  private static void escribir(PrintStream salida) {
+    Nivel[] nombres = Nivel.values();
+    StringBuilder linea = new StringBuilder();
+    long origen = System.nanoTime();
+    long avisados = 0;
+    while (true) {
+      long s = escrito;
+      int i = (int) (s & MASCARA);
+      if (publicado.get(i) != s + 1) {
+        long p = perdidos.get();
+        if (p != avisados) {
+          salida.println("traza: " + (p - avisados) + " eventos perdidos");
+          avisados = p;
+        }
+        salida.flush();
+        LockSupport.parkNanos(1_000_000);
+        continue;
+      }
+      linea.setLength(0);
+      linea.append((tiempos[i] - origen) / 1000).append("us ")
+        .append(nombres[niveles[i]]).append(' ').append(eventos[i]);
+      switch (argumentos[i]) {
+        case 1: linea.append(' ').append(primeros[i]); break;
+        case 2: linea.append(' ').append(primeros[i]).append(' ').append(segundos[i]); break;
+        case 3: linea.append(' ').append(textos[i]); break;
+        default: break;
+      }
+      textos[i] = null;
+      escrito = s + 1;
+      salida.println(linea);
+    }
+  }
+
+  /**
+   * Espera (como mucho un segundo) a que el escritor haya escrito los
+   * eventos registrados hasta ahora.
+   */
+  public static void vaciar() {
+    if (escritor == null)
+      return;
+    long hasta = siguiente.get();
+    long limite = System.nanoTime() + 1_000_000_000L;
+    while (escrito < hasta && System.nanoTime() < limite)
+      LockSupport.parkNanos(1_000_000);
+  }
+}
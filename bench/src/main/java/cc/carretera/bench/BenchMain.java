@@ -0,0 +1,51 @@
+package cc.carretera.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import cc.carretera.Carreteras;
+
+/**
+ * Lanzador de los benchmarks. Acepta las mismas opciones que el
+ * lanzador de JMH y ademas:
+ *
+ * - si no se da "-p impl=...", ejecuta todas las implementaciones
+ *   registradas en Carreteras, asi que una implementacion nueva entra
+ *   en los benchmarks solo con registrarla alli;
+ * - si no se da "-t", repite cada benchmark con 1, 2, 4 ... hilos hasta
+ *   el numero de procesadores (o hasta -Dbench.hilos=N).
+ */
+public class BenchMain {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions linea = new CommandLineOptions(args);
+
+    List<Integer> hilos = new ArrayList<Integer>();
+    if (linea.getThreads().hasValue()) {
+      hilos.add(linea.getThreads().get());
+    } else {
+      int max = Integer.getInteger("bench.hilos", Runtime.getRuntime().availableProcessors());
+      for (int n = 1; n < max; n *= 2)
+        hilos.add(n);
+      hilos.add(max);
+    }
+
+    for (int n : hilos) {
+      ChainedOptionsBuilder opciones = new OptionsBuilder()
+        .parent(linea)
+        .threads(n);
+      if (linea.getIncludes().isEmpty())
+        opciones.include(CarreteraBench.class.getSimpleName());
+      if (!linea.getParameter("impl").hasValue())
+        opciones.param("impl", Carreteras.nombres().toArray(new String[0]));
+      new Runner(opciones.build()).run();
+    }
+  }
+}
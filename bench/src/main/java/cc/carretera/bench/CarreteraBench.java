@@ -0,0 +1,141 @@
+package cc.carretera.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cc.carretera.Carretera;
+import cc.carretera.Carreteras;
+import cc.carretera.Pos;
+
+/**
+ * Benchmarks de las operaciones de Carretera.
+ *
+ * Cada invocacion deja la carretera como la encontro (el coche entra y
+ * sale en la misma invocacion), de forma que un hilo bloqueado en
+ * entrar siempre acaba desbloqueado por la salida de otro hilo y no
+ * quedan hilos colgados al terminar una iteracion. Los coches usan
+ * velocidad 0, asi circulando no depende de tick(). El coste de una
+ * operacion aislada se obtiene restando el de entrarSalir.
+ *
+ * La implementacion se elige con el parametro "impl"; BenchMain le da
+ * todos los nombres registrados en Carreteras.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CarreteraBench {
+
+  //  Ticks para que los coches de la carretera ocupada no terminen nunca
+  private static final int SIN_FIN = Integer.MAX_VALUE / 2;
+
+  /**
+   * Carretera vacia compartida por todos los hilos del benchmark.
+   */
+  @State(Scope.Benchmark)
+  public static class Vacia {
+    @Param({"monitor"})
+    public String impl;
+
+    //  segmentos x carriles
+    @Param({"2x2", "16x4", "1000x16", "10000x64"})
+    public String forma;
+
+    Carretera cr;
+    int segmentos;
+    int carriles;
+
+    @Setup(Level.Trial)
+    public void crear() {
+      int x = forma.indexOf('x');
+      segmentos = Integer.parseInt(forma.substring(0, x));
+      carriles = Integer.parseInt(forma.substring(x + 1));
+      cr = Carreteras.crear(impl, segmentos, carriles);
+    }
+  }
+
+  /**
+   * Carretera con coches que nunca terminan su segmento, para medir tick.
+   */
+  @State(Scope.Benchmark)
+  public static class Ocupada extends Vacia {
+    //  Coches en la carretera (como mucho segmentos * carriles)
+    @Param({"1000"})
+    public int coches;
+
+    @Override
+    @Setup(Level.Trial)
+    public void crear() {
+      super.crear();
+      int total = (int) Math.min(coches, (long) segmentos * carriles);
+      int ultimo = (total - 1) / carriles;
+      //  Se llenan primero los segmentos mas lejanos para que entrar no
+      //  se bloquee nunca
+      int n = 0;
+      for (int segmento = ultimo; segmento >= 0; segmento--) {
+        int enSegmento = segmento == ultimo ? total - ultimo * carriles : carriles;
+        for (int carril = 0; carril < enSegmento; carril++) {
+          String id = "fijo-" + n++;
+          cr.entrar(id, SIN_FIN);
+          for (int s = 0; s < segmento; s++)
+            cr.avanzar(id, SIN_FIN);
+        }
+      }
+    }
+  }
+
+  /**
+   * Identificador propio de cada hilo.
+   */
+  @State(Scope.Thread)
+  public static class Coche {
+    private static final AtomicInteger siguiente = new AtomicInteger();
+    String id;
+
+    @Setup(Level.Trial)
+    public void crear() {
+      id = "bench-" + siguiente.getAndIncrement();
+    }
+  }
+
+  @Benchmark
+  public void entrarSalir(Vacia c, Coche coche, Blackhole bh) {
+    bh.consume(c.cr.entrar(coche.id, 0));
+    c.cr.salir(coche.id);
+  }
+
+  @Benchmark
+  public void entrarAvanzarSalir(Vacia c, Coche coche, Blackhole bh) {
+    bh.consume(c.cr.entrar(coche.id, 0));
+    Pos pos = c.cr.avanzar(coche.id, 0);
+    bh.consume(pos);
+    c.cr.salir(coche.id);
+  }
+
+  @Benchmark
+  public void entrarCirculandoSalir(Vacia c, Coche coche, Blackhole bh) {
+    bh.consume(c.cr.entrar(coche.id, 0));
+    c.cr.circulando(coche.id);
+    c.cr.salir(coche.id);
+  }
+
+  @Benchmark
+  public void tick(Ocupada c) {
+    c.cr.tick();
+  }
+}